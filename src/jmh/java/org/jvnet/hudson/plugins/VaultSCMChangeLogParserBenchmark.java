@@ -0,0 +1,101 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.scm.ChangeLogSet;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.BufferedInputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading changelogs and history output: what a build page costs when it
+ * shows the changes, and what checkout costs when it joins history output.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class VaultSCMChangeLogParserBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int items;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private File changelog;
+    private File versionHistory;
+
+    @Setup(Level.Trial)
+    public void writeInputs() throws IOException {
+        changelog = VaultSCMHistoryDocuments.writeChangeLog(items, compressed);
+        versionHistory = VaultSCMHistoryDocuments.writeVersionHistory(items);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteInputs() {
+        changelog.delete();
+        versionHistory.delete();
+    }
+
+    /**
+     * Parses the changelog and walks every entry and file, as the changes page does.
+     */
+    @Benchmark
+    public void parseChangeLog(Blackhole bh) throws Exception {
+        ChangeLogSet<? extends ChangeLogSet.Entry> set = new VaultSCMChangeLogParser().parse(null, null, changelog);
+        for (ChangeLogSet.Entry entry : set) {
+            bh.consume(entry.getMsg());
+            for (ChangeLogSet.AffectedFile file : entry.getAffectedFiles()) {
+                bh.consume(file.getPath());
+                bh.consume(file.getEditType());
+            }
+        }
+    }
+
+    /**
+     * Only asks whether there are changes, as the build summary does.
+     */
+    @Benchmark
+    public boolean isEmptySet() throws Exception {
+        return new VaultSCMChangeLogParser().parse(null, null, changelog).isEmptySet();
+    }
+
+    /**
+     * Streams raw VERSIONHISTORY output through the item parser.
+     */
+    @Benchmark
+    public void parseVersionHistory(final Blackhole bh) throws IOException {
+        if (compressed) {
+            //the client output is never compressed, measure it once
+            return;
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(versionHistory));
+        try {
+            VaultSCMHistoryItem.parse(in, new VaultSCMHistoryItem.Handler() {
+                public void item(VaultSCMHistoryItem item) {
+                    bh.consume(item);
+                }
+            });
+        } finally {
+            in.close();
+        }
+    }
+}
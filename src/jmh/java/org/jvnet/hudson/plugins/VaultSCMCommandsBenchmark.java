@@ -0,0 +1,48 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.util.ArgumentListBuilder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the command lines of checkout and changelog capture.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VaultSCMCommandsBenchmark {
+
+    private static final String VAULT = "C:\\Program Files\\SourceGear\\Vault Client\\vault.exe";
+
+    @Benchmark
+    public ArgumentListBuilder getCommand() {
+        ArgumentListBuilder argBuildr = VaultSCMCommands.create(VAULT, "GET", "vault.example.com", "builder", null,
+                "Default Repository", true);
+        VaultSCMCommands.addGetOptions(argBuildr, true, true, "overwrite", "modification", false,
+                "C:\\jenkins\\workspace\\product");
+        argBuildr.add(VaultSCMHistoryDocuments.PATH);
+        return argBuildr;
+    }
+
+    @Benchmark
+    public String versionHistoryCommand() {
+        ArgumentListBuilder argBuildr = VaultSCMCommands.create(VAULT, "VERSIONHISTORY", "vault.example.com", "builder",
+                null, "Default Repository", true);
+        argBuildr.add("-enddate", "2018-03-02T10:00:00");
+        argBuildr.add("-begindate", "2018-03-01T10:00:00");
+        argBuildr.add(VaultSCMHistoryDocuments.PATH);
+        //launching formats the command for the log
+        return argBuildr.toString();
+    }
+}
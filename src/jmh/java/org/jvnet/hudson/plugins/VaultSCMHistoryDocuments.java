@@ -0,0 +1,97 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synthetic VERSIONHISTORY output and changelogs for the benchmarks. Items
+ * are generated from their index, so documents of any size can be written
+ * without holding them in memory.
+ */
+final class VaultSCMHistoryDocuments {
+
+    static final String PATH = "$/product/trunk";
+
+    private static final String[] USERS = {"alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi"};
+
+    private static final VaultSCMPathTree PATHS = new VaultSCMPathTree();
+
+    private VaultSCMHistoryDocuments() {
+    }
+
+    static VaultSCMHistoryItem item(int i) {
+        return new VaultSCMHistoryItem(i + 1, String.valueOf(100000 + i),
+                "3/" + (1 + i % 28) + "/2018 " + (1 + i % 12) + ":" + (10 + i % 50) + ":00 PM",
+                USERS[i % USERS.length], "Fix for issue #" + i + " in the build scripts", "", 0);
+    }
+
+    /**
+     * @return the files changed by the i-th folder version, one to four of them.
+     */
+    static List<VaultSCMAffectedFile> files(int i) {
+        List<VaultSCMAffectedFile> files = new ArrayList<VaultSCMAffectedFile>();
+        for (int f = 0; f <= i % 4; f++) {
+            files.add(new VaultSCMAffectedFile(PATHS.intern(PATH + "/module" + (i % 20) + "/src/File" + (i + f) % 500 + ".cs"),
+                    f == 0 ? VaultSCMAffectedFile.MODIFY : VaultSCMAffectedFile.ADD));
+        }
+        return files;
+    }
+
+    /**
+     * @return one item element as the client prints it.
+     */
+    static byte[] versionHistoryItem(int i) {
+        VaultSCMHistoryItem item = item(i);
+        return ("    <item version=\"" + item.getVersion() + "\" date=\"" + item.getDate() + "\" user=\"" + item.getUser()
+                + "\" comment=\"" + item.getComment() + "\" txid=\"" + item.getTxid() + "\" objverid=\"" + (i + 7)
+                + "\" />\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] versionHistoryStart() {
+        return "<vault>\r\n  <history>\r\n".getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] versionHistoryEnd() {
+        return "  </history>\r\n  <result success=\"yes\" />\r\n</vault>\r\n".getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes VERSIONHISTORY output with the given number of items, newest first.
+     */
+    static File writeVersionHistory(int items) throws IOException {
+        File file = File.createTempFile("versionhistory", ".xml");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            out.write(versionHistoryStart());
+            for (int i = items - 1; i >= 0; i--) {
+                out.write(versionHistoryItem(i));
+            }
+            out.write(versionHistoryEnd());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Writes a changelog with the given number of entries, as checkout does.
+     */
+    static File writeChangeLog(int items, boolean compress) throws IOException {
+        File file = File.createTempFile("changelog", ".xml");
+        VaultSCMChangeLogWriter writer = new VaultSCMChangeLogWriter(file, compress);
+        try {
+            for (int i = items - 1; i >= 0; i--) {
+                writer.writeItem(item(i), files(i));
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,326 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Many jobs polling and checking out against one Vault server at once,
+ * through the same concurrency limiter and history cache as VaultSCM, with
+ * {@link VaultSCMFakeClient} standing in for the server.
+ * <p>
+ * Sample time mode reports the latency percentiles of polls and checkouts;
+ * the aux counters report the time spent waiting for the limiter and the
+ * number of failed commands. Run with e.g.
+ * <code>-Djmh.args="VaultSCMLoad -p maxConcurrentGets=1,4 -p spawn=true"</code>.
+ * With spawn the fake is started as a process for each command, as the real
+ * client is, so process start-up is included.
+ * <p>
+ * The jobs replay the commands of a poll and a checkout rather than running
+ * VaultSCM, so that hundreds of them fit in one JVM. {@link VaultSCMLoadTest}
+ * runs the plugin's own polling and checkout against the fake.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 20)
+@Fork(1)
+public class VaultSCMLoadBenchmark {
+
+    private static final String SERVER = "vault.example.com";
+    private static final String REPOSITORY = "Default Repository";
+
+    @State(Scope.Group)
+    public static class Server {
+
+        @Param({"1", "4"})
+        public int maxConcurrentGets;
+
+        @Param({"2"})
+        public int maxConcurrentHistoryCommands;
+
+        @Param({"0", "30"})
+        public int historyCacheTtlSeconds;
+
+        /**
+         * Number of distinct paths the jobs poll, jobs on the same path share cached results.
+         */
+        @Param({"4"})
+        public int paths;
+
+        @Param({"50"})
+        public long latencyMillis;
+
+        @Param({"500"})
+        public long getLatencyMillis;
+
+        @Param({"0.01"})
+        public double failureRate;
+
+        @Param({"10000"})
+        public int historySize;
+
+        @Param({"false"})
+        public boolean spawn;
+
+        VaultSCMConcurrencyLimiter limiter;
+        VaultSCMHistoryCache<Long> cache;
+        VaultSCMFakeClient.Settings settings;
+        VaultSCMFakeClient client;
+        File root;
+        final AtomicInteger jobs = new AtomicInteger();
+        final AtomicLong getWaitNanos = new AtomicLong();
+        final AtomicLong historyWaitNanos = new AtomicLong();
+        final AtomicLong commands = new AtomicLong();
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            limiter = new VaultSCMConcurrencyLimiter();
+            cache = new VaultSCMHistoryCache<Long>();
+            settings = new VaultSCMFakeClient.Settings();
+            settings.latencyMillis = latencyMillis;
+            settings.getLatencyMillis = getLatencyMillis;
+            settings.jitterMillis = latencyMillis / 2;
+            settings.failureRate = failureRate;
+            settings.historySize = historySize;
+            //a check-in every few seconds so that some polls find changes
+            settings.checkInIntervalMillis = 5000;
+            client = new VaultSCMFakeClient(settings);
+            root = File.createTempFile("vault-load", "");
+            root.delete();
+            root.mkdirs();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            System.out.println();
+            System.out.println("commands: " + commands.get()
+                    + ", GET permit wait: " + TimeUnit.NANOSECONDS.toMillis(getWaitNanos.get()) + " ms"
+                    + ", history permit wait: " + TimeUnit.NANOSECONDS.toMillis(historyWaitNanos.get()) + " ms"
+                    + ", cache hits/misses: " + cache.getHits() + "/" + cache.getMisses());
+            delete(root);
+        }
+
+        /**
+         * Runs a command against the fake while holding a permit, as VaultSCM does.
+         *
+         * @return the exit code.
+         */
+        int run(VaultSCMConcurrencyLimiter.CommandType type, List<String> args, File cwd, OutputStream out, Job job)
+                throws IOException, InterruptedException {
+            long waitStart = System.nanoTime();
+            int permits = type == VaultSCMConcurrencyLimiter.CommandType.GET ? maxConcurrentGets : maxConcurrentHistoryCommands;
+            Semaphore sem = limiter.acquire(SERVER, REPOSITORY, type, permits, 5, TimeUnit.MINUTES);
+            long waited = System.nanoTime() - waitStart;
+            (type == VaultSCMConcurrencyLimiter.CommandType.GET ? getWaitNanos : historyWaitNanos).addAndGet(waited);
+            job.recordWait(type, waited);
+            if (sem == null) {
+                job.counters.timeouts++;
+                return 1;
+            }
+            commands.incrementAndGet();
+            int exitCode;
+            try {
+                exitCode = spawn ? spawn(args, cwd, out) : client.run(args.toArray(new String[args.size()]), out, cwd);
+            } finally {
+                sem.release();
+            }
+            if (exitCode != 0) {
+                job.counters.failures++;
+            }
+            return exitCode;
+        }
+
+        private int spawn(List<String> args, File cwd, OutputStream out) throws IOException, InterruptedException {
+            List<String> command = new ArrayList<String>();
+            command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(VaultSCMFakeClient.class.getName());
+            command.addAll(args);
+            ProcessBuilder builder = new ProcessBuilder(command).directory(cwd).redirectErrorStream(true);
+            builder.environment().putAll(settings.toEnvironment());
+            Process process = builder.start();
+            InputStream in = process.getInputStream();
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            return process.waitFor();
+        }
+
+        private static void delete(File file) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    delete(child);
+                }
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Permit wait and failures per job, summed over all jobs by JMH.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long getPermitWaitMillis;
+        public long historyPermitWaitMillis;
+        public long failures;
+        public long timeouts;
+
+        @Setup(Level.Iteration)
+        public void clean() {
+            getPermitWaitMillis = 0;
+            historyPermitWaitMillis = 0;
+            failures = 0;
+            timeouts = 0;
+        }
+    }
+
+    /**
+     * One job: the path it polls, its workspace and the version it last built.
+     */
+    @State(Scope.Thread)
+    public static class Job {
+        String path;
+        File workspace;
+        long lastVersion;
+        Counters counters;
+
+        @Setup(Level.Trial)
+        public void create(Server server) {
+            int id = server.jobs.getAndIncrement();
+            path = "$/product" + (id % server.paths);
+            workspace = new File(server.root, "job" + id);
+            workspace.mkdirs();
+            lastVersion = server.historySize;
+        }
+
+        void recordWait(VaultSCMConcurrencyLimiter.CommandType type, long nanos) {
+            if (type == VaultSCMConcurrencyLimiter.CommandType.GET) {
+                counters.getPermitWaitMillis += TimeUnit.NANOSECONDS.toMillis(nanos);
+            } else {
+                counters.historyPermitWaitMillis += TimeUnit.NANOSECONDS.toMillis(nanos);
+            }
+        }
+    }
+
+    /**
+     * Version based polling: one shared, cached single row VERSIONHISTORY per path.
+     */
+    @Benchmark
+    @Group("jobs")
+    @GroupThreads(16)
+    public boolean poll(final Server server, final Job job, Counters counters) throws Exception {
+        job.counters = counters;
+        Long latest = server.cache.get("version|" + SERVER + "|" + REPOSITORY + "|" + job.path,
+                TimeUnit.SECONDS.toMillis(server.historyCacheTtlSeconds), new Callable<Long>() {
+                    public Long call() throws Exception {
+                        return latestVersion(server, job);
+                    }
+                });
+        return latest != null && latest.longValue() > job.lastVersion;
+    }
+
+    /**
+     * A full GET followed by the changelog history commands.
+     */
+    @Benchmark
+    @Group("jobs")
+    @GroupThreads(4)
+    public int checkout(Server server, Job job, Counters counters) throws Exception {
+        job.counters = counters;
+        Long version = latestVersion(server, job);
+
+        List<String> get = command("GET");
+        get.add("-merge");
+        get.add("overwrite");
+        get.add("-workingfolder");
+        get.add(job.workspace.getPath());
+        get.add(job.path);
+        int exitCode = server.run(VaultSCMConcurrencyLimiter.CommandType.GET, get, job.workspace, new NullOutputStream(), job);
+        if (exitCode != 0) {
+            return exitCode;
+        }
+
+        for (String type : new String[] {"VERSIONHISTORY", "HISTORY"}) {
+            List<String> history = command(type);
+            history.add("-beginversion");
+            history.add(String.valueOf(job.lastVersion + 1));
+            history.add(job.path);
+            VaultSCMItemCounter counter = new VaultSCMItemCounter(Integer.MAX_VALUE);
+            server.run(VaultSCMConcurrencyLimiter.CommandType.HISTORY, history, job.workspace, counter, job);
+        }
+        if (version != null) {
+            job.lastVersion = version.longValue();
+        }
+        return 0;
+    }
+
+    private static Long latestVersion(Server server, Job job) throws IOException, InterruptedException {
+        List<String> args = command("VERSIONHISTORY");
+        args.add("-rowlimit");
+        args.add("1");
+        args.add(job.path);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (server.run(VaultSCMConcurrencyLimiter.CommandType.HISTORY, args, job.workspace, out, job) != 0) {
+            return null;
+        }
+        List<VaultSCMHistoryItem> items = VaultSCMHistoryItem.parse(new ByteArrayInputStream(out.toByteArray()));
+        return items.isEmpty() ? null : Long.valueOf(items.get(0).getVersion());
+    }
+
+    private static List<String> command(String name) {
+        List<String> args = new ArrayList<String>();
+        args.add(name);
+        args.add("-host");
+        args.add(SERVER);
+        args.add("-repository");
+        args.add(REPOSITORY);
+        return args;
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
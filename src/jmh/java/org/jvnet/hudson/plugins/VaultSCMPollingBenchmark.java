@@ -0,0 +1,108 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The work polling does on the controller per poll, apart from running the
+ * client: counting items in VERSIONHISTORY output as it streams past, reading
+ * the latest version and comparing it with the baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VaultSCMPollingBenchmark {
+
+    /**
+     * Items the client would print if it was not stopped.
+     */
+    @Param({"10", "1000", "100000", "1000000"})
+    public int items;
+
+    private byte[] header;
+    private byte[][] chunks;
+    private byte[] latestVersionOutput;
+    private VaultSCMRevisionState baseline;
+
+    @Setup(Level.Trial)
+    public void createInputs() throws IOException {
+        header = VaultSCMHistoryDocuments.versionHistoryStart();
+        //the client output arrives in pipe sized pieces, one item per write is close enough
+        chunks = new byte[1000][];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = VaultSCMHistoryDocuments.versionHistoryItem(i);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(VaultSCMHistoryDocuments.versionHistoryStart());
+        out.write(VaultSCMHistoryDocuments.versionHistoryItem(items - 1));
+        out.write(VaultSCMHistoryDocuments.versionHistoryEnd());
+        latestVersionOutput = out.toByteArray();
+
+        baseline = new VaultSCMRevisionState();
+        baseline.addRevision(VaultSCMHistoryDocuments.PATH, items - 1);
+        for (int i = 0; i < 9; i++) {
+            baseline.addRevision(VaultSCMHistoryDocuments.PATH + "/other" + i, i);
+        }
+    }
+
+    /**
+     * Date based polling: stops at the first item, so the cost should not depend on the history size.
+     */
+    @Benchmark
+    public int countFirstChange() {
+        return count(new VaultSCMItemCounter(1));
+    }
+
+    /**
+     * Counting every item, what polling cost before it stopped early.
+     */
+    @Benchmark
+    public int countAllChanges() {
+        return count(new VaultSCMItemCounter(Integer.MAX_VALUE));
+    }
+
+    /**
+     * Version based polling: parse the single row output and compare it with the baseline.
+     */
+    @Benchmark
+    public boolean compareLatestVersion() throws IOException {
+        List<VaultSCMHistoryItem> latest = VaultSCMHistoryItem.parse(new ByteArrayInputStream(latestVersionOutput));
+        return baseline.isOlderThan(VaultSCMHistoryDocuments.PATH, latest.get(0).getVersion());
+    }
+
+    /**
+     * The baseline lookup alone, done for every poll of every job.
+     */
+    @Benchmark
+    public boolean compareRevisionState() {
+        return baseline.isOlderThan(VaultSCMHistoryDocuments.PATH, items);
+    }
+
+    private int count(VaultSCMItemCounter counter) {
+        counter.write(header, 0, header.length);
+        for (int i = 0; i < items && !counter.isLimitReached(); i++) {
+            byte[] chunk = chunks[i % chunks.length];
+            counter.write(chunk, 0, chunk.length);
+        }
+        return counter.getCount();
+    }
+}
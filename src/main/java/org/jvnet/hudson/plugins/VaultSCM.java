@@ -9,6 +9,9 @@ import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
+import hudson.Util;
+import hudson.console.LineTransformationOutputStream;
 import hudson.model.Computer;
 import hudson.model.Job;
 import hudson.model.Node;
@@ -19,33 +22,59 @@ import hudson.scm.PollingResult;
 import hudson.scm.SCM;
 import hudson.scm.SCMDescriptor;
 import hudson.scm.SCMRevisionState;
+import hudson.slaves.WorkspaceList;
 import hudson.tools.ToolInstallation;
 import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
 import hudson.util.Secret;
+import hudson.util.StreamTaskListener;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
 
 public class VaultSCM extends SCM {
 
@@ -56,6 +85,20 @@ public class VaultSCM extends SCM {
         private final static List<String> MERGE_OPTIONS = Arrays.asList("automatic", "overwrite", "later");
         private final static List<String> FILETIME_OPTIONS = Arrays.asList("checkin", "current", "modification");
 
+        private int maxConcurrentGets = 1;
+        private int maxConcurrentHistoryCommands = 2;
+        private int historyCacheTtlSeconds = 30;
+        private boolean useBatchSessions;
+        private boolean compressChangelogs;
+        private int mirrorSizeLimitMB = 10240;
+        private boolean mirrorHardLinks;
+        private String pollingNode;
+        private int maxPollBackoffMinutes;
+        private Secret notifyCommitToken;
+        private int historyIndexMaxVersions = 1000;
+        private int changelogMaxEntries = 1000;
+        private int changelogMaxDays = 90;
+
         /**
          * Constructor for a new VaultSCMDescriptor.
          */
@@ -66,10 +109,173 @@ public class VaultSCM extends SCM {
 
         @Override
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
+            maxConcurrentGets = Math.max(1, formData.optInt("maxConcurrentGets", 1));
+            maxConcurrentHistoryCommands = Math.max(1, formData.optInt("maxConcurrentHistoryCommands", 2));
+            historyCacheTtlSeconds = Math.max(0, formData.optInt("historyCacheTtlSeconds", 30));
+            useBatchSessions = formData.optBoolean("useBatchSessions");
+            compressChangelogs = formData.optBoolean("compressChangelogs");
+            mirrorSizeLimitMB = Math.max(0, formData.optInt("mirrorSizeLimitMB", 10240));
+            mirrorHardLinks = formData.optBoolean("mirrorHardLinks");
+            pollingNode = Util.fixEmptyAndTrim(formData.optString("pollingNode"));
+            maxPollBackoffMinutes = Math.max(0, formData.optInt("maxPollBackoffMinutes", 0));
+            notifyCommitToken = Secret.fromString(Util.fixEmptyAndTrim(formData.optString("notifyCommitToken")));
+            historyIndexMaxVersions = Math.max(0, formData.optInt("historyIndexMaxVersions", 1000));
+            changelogMaxEntries = Math.max(0, formData.optInt("changelogMaxEntries", 1000));
+            changelogMaxDays = Math.max(0, formData.optInt("changelogMaxDays", 90));
+            LIMITER.reset();
+            HISTORY_CACHE.clear();
+            POLL_BACKOFF.clear();
             save();
             return true;
         }
 
+        /**
+         * Maximum number of GETs running at once per server and repository.
+         */
+        public int getMaxConcurrentGets() {
+            return maxConcurrentGets;
+        }
+
+        /**
+         * Maximum number of history commands running at once per server and repository.
+         */
+        public int getMaxConcurrentHistoryCommands() {
+            return maxConcurrentHistoryCommands;
+        }
+
+        /**
+         * How long, in seconds, the result of a history query is shared with other jobs.
+         */
+        public int getHistoryCacheTtlSeconds() {
+            return historyCacheTtlSeconds;
+        }
+
+        /**
+         * Whether several GETs of one checkout are run in a single client session.
+         */
+        public boolean getUseBatchSessions() {
+            return useBatchSessions;
+        }
+
+        /**
+         * Whether new changelogs are stored gzip compressed.
+         */
+        public boolean getCompressChangelogs() {
+            return compressChangelogs;
+        }
+
+        /**
+         * How many megabytes of mirrors are kept on each node before the least recently used are deleted.
+         */
+        public int getMirrorSizeLimitMB() {
+            return mirrorSizeLimitMB;
+        }
+
+        /**
+         * Whether workspaces are populated from mirrors by hard links rather than copies.
+         */
+        public boolean getMirrorHardLinks() {
+            return mirrorHardLinks;
+        }
+
+        /**
+         * The node that jobs polling without a workspace run the client on, or null for the controller.
+         */
+        public String getPollingNode() {
+            return pollingNode;
+        }
+
+        /**
+         * The longest, in minutes, polling of a quiet path is backed off to, 0 to query at every trigger.
+         */
+        public int getMaxPollBackoffMinutes() {
+            return maxPollBackoffMinutes;
+        }
+
+        /**
+         * The token check-in notifications must carry, or null if notifications are not accepted.
+         */
+        public Secret getNotifyCommitToken() {
+            return notifyCommitToken;
+        }
+
+        /**
+         * How many versions of each path the history index keeps, 0 to query the server for every changelog.
+         */
+        public int getHistoryIndexMaxVersions() {
+            return historyIndexMaxVersions;
+        }
+
+        /**
+         * The most changes listed in a changelog, 0 for no limit.
+         */
+        public int getChangelogMaxEntries() {
+            return changelogMaxEntries;
+        }
+
+        /**
+         * How many days back a changelog lists changes from, 0 for no limit.
+         */
+        public int getChangelogMaxDays() {
+            return changelogMaxDays;
+        }
+
+        public VaultSCMPollBackoff getPollBackoff() {
+            return POLL_BACKOFF;
+        }
+
+        public VaultSCMHistoryCache<Long> getHistoryCache() {
+            return HISTORY_CACHE;
+        }
+
+        public VaultSCMCommandStats getCommandStats() {
+            return STATS;
+        }
+
+        int getMaxConcurrent(VaultSCMConcurrencyLimiter.CommandType type) {
+            return type == VaultSCMConcurrencyLimiter.CommandType.GET ? maxConcurrentGets : maxConcurrentHistoryCommands;
+        }
+
+        public FormValidation doCheckMaxConcurrentGets(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckMaxConcurrentHistoryCommands(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckHistoryCacheTtlSeconds(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMirrorSizeLimitMB(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMaxPollBackoffMinutes(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckHistoryIndexMaxVersions(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckChangelogMaxEntries(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckChangelogMaxDays(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckPollingNode(@QueryParameter String value) {
+            String name = Util.fixEmptyAndTrim(value);
+            if (name != null && Jenkins.getInstance().getNode(name) == null) {
+                return FormValidation.error("No node named " + name);
+            }
+            return FormValidation.ok();
+        }
+
         public VaultSCMInstallation.DescriptorImpl getToolDescriptor() {
             return ToolInstallation.all().get(VaultSCMInstallation.DescriptorImpl.class);
         }
@@ -118,7 +324,15 @@ public class VaultSCM extends SCM {
         }
     }
 
-    private static final Semaphore sem = new Semaphore(1);
+    private static final VaultSCMConcurrencyLimiter LIMITER = new VaultSCMConcurrencyLimiter();
+    private static final VaultSCMHistoryCache<Long> HISTORY_CACHE = new VaultSCMHistoryCache<Long>();
+    private static final VaultSCMCommandStats STATS = new VaultSCMCommandStats();
+    private static final VaultSCMPollBackoff POLL_BACKOFF = new VaultSCMPollBackoff();
+
+    /**
+     * Above this many changed files a full GET is done instead of an incremental one.
+     */
+    private static final int MAX_INCREMENTAL_FILES = 500;
     
     //configuration variables from user interface
     private String serverName;
@@ -133,6 +347,12 @@ public class VaultSCM extends SCM {
     private String fileTime;
     private boolean makeWritableEnabled;
     private boolean verboseEnabled;
+    private boolean incrementalGet;
+    private boolean skipUnchangedGet;
+    private int parallelGets;
+    private boolean useMirror;
+    private boolean pollWithoutWorkspace;
+    private List<VaultSCMLocation> additionalPaths;
 
     public boolean getMakeWritableEnabled() {
         return makeWritableEnabled;
@@ -161,6 +381,105 @@ public class VaultSCM extends SCM {
         this.verboseEnabled = verboseEnabled;
     }
 
+    public boolean getIncrementalGet() {
+        return incrementalGet;
+    }
+
+    @DataBoundSetter
+    public void setIncrementalGet(boolean incrementalGet) {
+        this.incrementalGet = incrementalGet;
+    }
+
+    public boolean getSkipUnchangedGet() {
+        return skipUnchangedGet;
+    }
+
+    @DataBoundSetter
+    public void setSkipUnchangedGet(boolean skipUnchangedGet) {
+        this.skipUnchangedGet = skipUnchangedGet;
+    }
+
+    /**
+     * @return how many top-level subfolders are fetched at once, 1 for a single GET of the whole path.
+     */
+    public int getParallelGets() {
+        return Math.max(1, parallelGets);
+    }
+
+    @DataBoundSetter
+    public void setParallelGets(int parallelGets) {
+        this.parallelGets = Math.max(1, parallelGets);
+    }
+
+    public boolean getUseMirror() {
+        return useMirror;
+    }
+
+    @DataBoundSetter
+    public void setUseMirror(boolean useMirror) {
+        this.useMirror = useMirror;
+    }
+
+    public boolean getPollWithoutWorkspace() {
+        return pollWithoutWorkspace;
+    }
+
+    @DataBoundSetter
+    public void setPollWithoutWorkspace(boolean pollWithoutWorkspace) {
+        this.pollWithoutWorkspace = pollWithoutWorkspace;
+    }
+
+    /**
+     * @return the paths fetched besides {@link #getPath()}, each into its own folder.
+     */
+    public List<VaultSCMLocation> getAdditionalPaths() {
+        return additionalPaths == null ? Collections.<VaultSCMLocation>emptyList() : additionalPaths;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a path is listed twice, or a folder
+     *         is not inside the workspace, as versions and changelogs are
+     *         recorded per path.
+     */
+    @DataBoundSetter
+    public void setAdditionalPaths(List<VaultSCMLocation> additionalPaths) {
+        this.additionalPaths = additionalPaths == null || additionalPaths.isEmpty() ? null
+                : new ArrayList<VaultSCMLocation>(additionalPaths);
+        String error = checkLocations(getLocations());
+        if (error != null) {
+            this.additionalPaths = null;
+            throw new IllegalArgumentException(error);
+        }
+    }
+
+    /**
+     * @return the path and the additional paths.
+     */
+    public List<VaultSCMLocation> getLocations() {
+        List<VaultSCMLocation> locations = new ArrayList<VaultSCMLocation>();
+        locations.add(new VaultSCMLocation(path, null));
+        locations.addAll(getAdditionalPaths());
+        return locations;
+    }
+
+    /**
+     * @return why the locations cannot be fetched together, or null if they can.
+     */
+    private static String checkLocations(List<VaultSCMLocation> locations) {
+        Set<String> paths = new HashSet<String>();
+        for (VaultSCMLocation location : locations) {
+            //Vault paths are not case sensitive
+            if (location.getPath() != null && !paths.add(location.getPath().toLowerCase(Locale.ENGLISH))) {
+                return location.getPath() + " is listed more than once.";
+            }
+            String error = VaultSCMLocation.checkSubDirectory(location.getSubDirectory());
+            if (error != null) {
+                return error;
+            }
+        }
+        return null;
+    }
+
     public boolean getUseNonWorkingFolder() {
         return useNonWorkingFolder;
     }
@@ -257,7 +576,6 @@ public class VaultSCM extends SCM {
     public static final VaultSCMDescriptor DESCRIPTOR = new VaultSCMDescriptor();
 
     public static final String VAULT_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
-    private SimpleDateFormat dateFormatter = new SimpleDateFormat(VAULT_DATE_FORMAT);
 
     @DataBoundConstructor
     public VaultSCM(String serverName, String path, String userName,
@@ -288,6 +606,14 @@ public class VaultSCM extends SCM {
     public SCMRevisionState calcRevisionsFromBuild(Run<?,?> build, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException,
             InterruptedException {
 
+        //checkout records the version it fetched, use that if it is there
+        List<VaultSCMRevisionState> recorded = build.getActions(VaultSCMRevisionState.class);
+        for (int i = recorded.size() - 1; i >= 0; i--) {
+            if (recorded.get(i).getRevision(path) != null) {
+                return recorded.get(i);
+            }
+        }
+
         VaultSCMRevisionState scmRevisionState = new VaultSCMRevisionState();
         final Date lastBuildDate = build.getTime();
         scmRevisionState.setDate(lastBuildDate);
@@ -296,25 +622,167 @@ public class VaultSCM extends SCM {
     }
 
     @Override
-    public PollingResult compareRemoteRevisionWith(Job<?,?> project, Launcher launcher, FilePath workspace, TaskListener listener, SCMRevisionState baseline) 
+    public boolean requiresWorkspaceForPolling() {
+        return !pollWithoutWorkspace;
+    }
+
+    @Override
+    public PollingResult compareRemoteRevisionWith(Job<?,?> project, Launcher launcher, FilePath workspace, TaskListener listener, SCMRevisionState baseline)
         throws IOException, InterruptedException {
 
-        Date lastBuild = ((VaultSCMRevisionState) baseline).getDate();
-        LOG.log(Level.INFO, "Last Build Date set to {0}", lastBuild.toString());
-        Date now = new Date();
-        File temporaryFile = File.createTempFile("changes", ".txt");
-        int countChanges = determineChangeCount(launcher, workspace, listener, lastBuild, now, temporaryFile);
-        boolean bDeleted = temporaryFile.delete();
-        if(!bDeleted)
-        {
-            throw new IOException();
+        VaultSCMRevisionState state = (VaultSCMRevisionState) baseline;
+        long now = System.currentTimeMillis();
+        List<String> duePaths = new ArrayList<String>();
+        for (VaultSCMLocation location : getLocations()) {
+            String locationPath = location.getPath();
+            if (DESCRIPTOR.getMaxPollBackoffMinutes() > 0 && !POLL_BACKOFF.isDue(getActivityKey(locationPath), state.getRevision(locationPath), now)) {
+                listener.getLogger().println("No new version of " + locationPath + " seen lately, it is queried every "
+                        + Util.getTimeSpanString(POLL_BACKOFF.getIntervalMillis(getActivityKey(locationPath))) + ".");
+            } else {
+                duePaths.add(locationPath);
+            }
         }
-
-        if (countChanges == 0) {
+        if (duePaths.isEmpty()) {
             return PollingResult.NO_CHANGES;
-        } else {
-			return PollingResult.BUILD_NOW;
-		}
+        }
+
+        if (workspace == null) {
+            //polling without a workspace, the client runs in the root folder of the polling node
+            Node node = getPollingNode();
+            workspace = node.getRootPath();
+            if (workspace == null) {
+                throw new AbortException("Polling node " + node.getDisplayName() + " is offline.");
+            }
+            listener.getLogger().println("Polling from " + node.getDisplayName() + " without a workspace.");
+            launcher = node.createLauncher(listener);
+        }
+        //one pass over all paths, stopping at the first with changes
+        for (String duePath : duePaths) {
+            if (hasChanges(launcher, workspace, listener, state, duePath)) {
+                return PollingResult.BUILD_NOW;
+            }
+        }
+        return PollingResult.NO_CHANGES;
+    }
+
+    /**
+     * @return the key polling activity of the path is tracked under.
+     */
+    String getActivityKey(String path) {
+        return serverName + "|" + repositoryName + "|" + path;
+    }
+
+    /**
+     * @param changedPaths the paths checked in to, empty if not known.
+     * @return whether a check-in to the server and repository touching one of
+     *         the paths may change what this job fetches. Vault paths are not
+     *         case sensitive.
+     */
+    boolean isAffectedBy(String server, String repository, List<String> changedPaths) {
+        if (!server.equalsIgnoreCase(serverName) || !repository.equalsIgnoreCase(repositoryName)) {
+            return false;
+        }
+        if (changedPaths.isEmpty()) {
+            return true;
+        }
+        for (VaultSCMLocation location : getLocations()) {
+            String jobPath = trimSlash(location.getPath()).toLowerCase(Locale.ENGLISH);
+            for (String changedPath : changedPaths) {
+                String changed = trimSlash(changedPath).toLowerCase(Locale.ENGLISH);
+                //a change below the path, or to a folder holding it
+                if (changed.equals(jobPath) || changed.startsWith(jobPath + "/") || jobPath.startsWith(changed + "/")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String trimSlash(String path) {
+        return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+
+    /**
+     * Forgets what is known about the latest versions of the paths, so that
+     * the next poll queries the server however recently it was queried.
+     */
+    void invalidatePollingState() {
+        for (VaultSCMLocation location : getLocations()) {
+            POLL_BACKOFF.reset(getActivityKey(location.getPath()));
+            HISTORY_CACHE.invalidate("version|" + serverName + "|" + repositoryName + "|" + userName + "|" + location.getPath());
+            HISTORY_CACHE.invalidate("count|" + serverName + "|" + repositoryName + "|" + userName + "|" + location.getPath() + "|");
+        }
+    }
+
+    /**
+     * @return the node configured for polling without a workspace, or the controller.
+     */
+    private static Node getPollingNode() throws AbortException {
+        String name = DESCRIPTOR.getPollingNode();
+        if (name == null) {
+            return Jenkins.getInstance();
+        }
+        Node node = Jenkins.getInstance().getNode(name);
+        if (node == null) {
+            throw new AbortException("Polling node " + name + " does not exist.");
+        }
+        return node;
+    }
+
+    /**
+     * @return whether the path has changed since the baseline.
+     */
+    private boolean hasChanges(final Launcher launcher, final FilePath workspace, final TaskListener listener,
+            VaultSCMRevisionState state, final String path) throws IOException, InterruptedException {
+        long ttl = TimeUnit.SECONDS.toMillis(DESCRIPTOR.getHistoryCacheTtlSeconds());
+        Long lastVersion = state.getRevision(path);
+
+        if (lastVersion != null) {
+            VaultSCMHistoryIndex index = getHistoryIndex(path);
+            if (index != null && index.getLatestVersion() > lastVersion.longValue()) {
+                //another build already fetched a newer version
+                listener.getLogger().println("Last built version of " + path + " " + lastVersion + ", version "
+                        + index.getLatestVersion() + " is already in the history index");
+                return true;
+            }
+
+            //jobs polling the same path share one version lookup, a failed lookup is not shared
+            String key = "version|" + serverName + "|" + repositoryName + "|" + userName + "|" + path;
+            Long latestVersion = HISTORY_CACHE.get(key, ttl, new Callable<Long>() {
+                public Long call() throws Exception {
+                    Long version = determineLatestVersion(launcher, workspace, listener, path);
+                    if (version == null) {
+                        throw new AbortException("Failed to determine the latest version of " + path + ".");
+                    }
+                    return version;
+                }
+            });
+            listener.getLogger().println("Last built version of " + path + " " + lastVersion + ", latest version " + latestVersion);
+            recordPoll(path, latestVersion, false);
+            return state.isOlderThan(path, latestVersion.longValue());
+        }
+
+        //builds from before versions were recorded only have a date
+        final Date lastBuild = state.getDate();
+        LOG.log(Level.INFO, "Last Build Date set to {0}", lastBuild.toString());
+        final Date now = new Date();
+        //jobs polling the same path since the same date share one VERSIONHISTORY call
+        String key = "count|" + serverName + "|" + repositoryName + "|" + userName + "|" + path + "|" + lastBuild.getTime();
+        long countChanges = HISTORY_CACHE.get(key, ttl, new Callable<Long>() {
+            public Long call() throws Exception {
+                return Long.valueOf(determineChangeCount(launcher, workspace, listener, path, lastBuild, now));
+            }
+        });
+        recordPoll(path, null, countChanges > 0);
+
+        return countChanges != 0;
+    }
+
+    private void recordPoll(String path, Long latestVersion, boolean changed) {
+        long maxBackoff = TimeUnit.MINUTES.toMillis(DESCRIPTOR.getMaxPollBackoffMinutes());
+        if (maxBackoff > 0) {
+            POLL_BACKOFF.polled(getActivityKey(path), latestVersion, changed, System.currentTimeMillis(), maxBackoff);
+        }
     }
 
     private boolean checkVaultPath(String path, Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
@@ -330,13 +798,23 @@ public class VaultSCM extends SCM {
         return true;
     }
 
-    private String getVaultPath(Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
+    private String getVaultPath(Launcher launcher, FilePath workspace, TaskListener listener) throws InterruptedException, IOException {
 
         final String defaultPath = "C:\\Program Files\\SourceGear\\Vault Client\\vault.exe";
         final String defaultPathX86 = "C:\\Program Files (x86)\\SourceGear\\Vault Client\\vault.exe";
 
+        Computer computer = workspace == null ? null : workspace.toComputer();
+        if (computer == null) {
+            computer = Computer.currentComputer();
+        }
+        Node node = computer == null ? null : computer.getNode();
+
         VaultSCMInstallation installation = getVault();
-        String pathToVault;
+        String installationName = installation == null ? null : installation.getName();
+        String pathToVault = node == null ? null : VaultSCMExecutableCache.get(installationName, node.getNodeName());
+        if (pathToVault != null) {
+            return pathToVault;
+        }
 
         if (installation == null) {
             // Check the first default location for vault...
@@ -349,7 +827,6 @@ public class VaultSCM extends SCM {
                 return null;
             }
         } else {
-            Node node = Computer.currentComputer().getNode();
             if(node == null) {
                 return null;
             }
@@ -361,9 +838,32 @@ public class VaultSCM extends SCM {
                 return null;
             }
         }
+
+        if (node != null) {
+            VaultSCMExecutableCache.put(installationName, node.getNodeName(), pathToVault);
+        }
         return pathToVault;
     }
 
+    /**
+     * Waits up to five minutes for a free slot on this job's server and
+     * repository, recording the command in the command statistics.
+     *
+     * @return the execution to finish once the command is over, which releases
+     *         the slot, or null on timeout.
+     */
+    private VaultSCMCommandStats.Execution acquirePermit(VaultSCMConcurrencyLimiter.CommandType type,
+            ArgumentListBuilder argBuildr) throws InterruptedException {
+        VaultSCMCommandStats.Execution execution = STATS.start(argBuildr.toList().get(1), serverName, repositoryName, type);
+        Semaphore sem = LIMITER.acquire(serverName, repositoryName, type, DESCRIPTOR.getMaxConcurrent(type), 5, TimeUnit.MINUTES);
+        if (sem == null) {
+            execution.finished(-1);
+            return null;
+        }
+        execution.acquired(sem);
+        return execution;
+    }
+
     @Override
     public String getKey(){
         return this.vaultName;
@@ -376,89 +876,217 @@ public class VaultSCM extends SCM {
 
     @Override
     public void checkout(Run<?,?> build, Launcher launcher, FilePath workspace, TaskListener listener, File changelogFile, SCMRevisionState baseline) throws IOException, InterruptedException {
-        String pathToVault = getVaultPath(launcher, listener);
+        String pathToVault = getVaultPath(launcher, workspace, listener);
 
         if(pathToVault == null || pathToVault.isEmpty()){
             throw new AbortException("Failed to find Vault path.");
         }
 
-        //populate the GET command
-        //in some cases username, host and password can be empty e.g. if rememberlogin is used to store login data
-        ArgumentListBuilder argBuildr = new ArgumentListBuilder();
-
-        argBuildr.add(pathToVault);
-        argBuildr.add("GET");
-
-        if (serverName != null && !serverName.isEmpty()) {
-            argBuildr.add("-host", serverName);
+        List<VaultSCMLocation> locations = getLocations();
+        //configurations saved before the paths were checked may still hold duplicates
+        String error = checkLocations(locations);
+        if (error != null) {
+            throw new AbortException(error);
         }
-
-        if (!userName.isEmpty()) {
-            argBuildr.add("-user", userName);
+        Map<String, Long> versions;
+        if (locations.size() == 1) {
+            versions = new LinkedHashMap<String, Long>();
+            versions.put(path, checkoutPath(build, launcher, workspace, listener, pathToVault, locations.get(0)));
+        } else {
+            versions = checkoutPaths(build, launcher, workspace, listener, pathToVault, locations);
         }
 
-        if (!Secret.toString(password).isEmpty()) {
-            argBuildr.add("-password");
-            argBuildr.add(Secret.toString(password), true);
+        VaultSCMRevisionState state = new VaultSCMRevisionState();
+        state.setDate(build.getTime());
+        for (Map.Entry<String, Long> version : versions.entrySet()) {
+            if (version.getValue() != null) {
+                state.addRevision(version.getKey(), version.getValue());
+            }
         }
+        build.addAction(state);
 
-        if (!repositoryName.isEmpty()) {
-            argBuildr.add("-repository", repositoryName);
+        if (changelogFile != null) {
+            VaultSCMRevisionState previous = baseline instanceof VaultSCMRevisionState ? (VaultSCMRevisionState) baseline : null;
+            Date lastBuildDate = getLastBuildDate(build, listener);
+            Date now = new Date(); //defaults to current
+            Set<String> listed = new HashSet<String>();
+            VaultSCMChangeLogWriter writer = new VaultSCMChangeLogWriter(changelogFile, DESCRIPTOR.getCompressChangelogs());
+            try {
+                for (Map.Entry<String, Long> version : versions.entrySet()) {
+                    Long baselineVersion = previous == null ? null : previous.getRevision(version.getKey());
+                    if (version.getValue() != null && version.getValue().equals(baselineVersion)) {
+                        //the previous build had this version too, there is nothing to list
+                        continue;
+                    }
+                    if (version.getValue() != null && baselineVersion != null
+                            && baselineVersion.longValue() < version.getValue().longValue()
+                            && writeChangeLogFromIndex(launcher, workspace, listener, pathToVault, version.getKey(),
+                                    baselineVersion.longValue(), version.getValue().longValue(), lastBuildDate, writer, listed)) {
+                        continue;
+                    }
+                    captureChangeLog(launcher, workspace, listener, version.getKey(), lastBuildDate, now,
+                            changelogFile.getParentFile(), writer, listed);
+                }
+            } finally {
+                writer.close();
+            }
+            listener.getLogger().println("Change log file: " + changelogFile.getAbsolutePath());
         }
 
-        if (this.sslEnabled) {
-            argBuildr.add("-ssl");
-        }
+        listener.getLogger().println("Checkout completed.");
+    }
 
-        if (this.verboseEnabled) {
-            argBuildr.add("-verbose");
-        }
+    /**
+     * Checks out several paths at once, each with its own output prefix. The
+     * GETs still take slots from the per-repository limit.
+     *
+     * @return the version fetched of each path, null where it is unknown.
+     */
+    private Map<String, Long> checkoutPaths(final Run<?,?> build, final Launcher launcher, final FilePath workspace,
+            final TaskListener listener, final String pathToVault, List<VaultSCMLocation> locations) throws IOException, InterruptedException {
+        listener.getLogger().println("Checking out " + locations.size() + " paths at once.");
+        ExecutorService executor = Executors.newFixedThreadPool(locations.size(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "Vault checkout of " + repositoryName));
+        try {
+            Map<String, Future<Long>> results = new LinkedHashMap<String, Future<Long>>();
+            for (final VaultSCMLocation location : locations) {
+                results.put(location.getPath(), executor.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        OutputStream out = new PrefixedOutputStream(listener.getLogger(), "[" + location.getPath() + "] ");
+                        try {
+                            return checkoutPath(build, launcher, workspace, new StreamTaskListener(out), pathToVault, location);
+                        } finally {
+                            out.close();
+                        }
+                    }
+                }));
+            }
+
+            //wait for all paths, so that none is left running when this returns
+            Map<String, Long> versions = new LinkedHashMap<String, Long>();
+            List<String> failures = new ArrayList<String>();
+            for (Map.Entry<String, Future<Long>> result : results.entrySet()) {
+                try {
+                    versions.put(result.getKey(), result.getValue().get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    failures.add(result.getKey() + " failed: " + (cause instanceof AbortException ? cause.getMessage() : cause));
+                }
+            }
 
-        if (this.makeWritableEnabled) {
-            argBuildr.add("-makewritable");
+            for (String failure : failures) {
+                listener.error("Checkout of " + failure);
+            }
+            if (!failures.isEmpty()) {
+                throw new AbortException("Failed to pull vault contents.");
+            }
+            return versions;
+        } finally {
+            executor.shutdownNow();
         }
+    }
 
-        argBuildr.add("-merge", merge);
+    /**
+     * Brings the folder of one path up to the latest version, by the quickest
+     * of the configured means.
+     *
+     * @return the version fetched, or null if it could not be determined.
+     */
+    private Long checkoutPath(Run<?,?> build, Launcher launcher, FilePath workspace, TaskListener listener,
+            String pathToVault, VaultSCMLocation location) throws IOException, InterruptedException {
+        String path = location.getPath();
+        FilePath target = location.getTarget(workspace);
 
-        argBuildr.add("-setfiletime", fileTime);
+        //look up the version before the GET so that a check-in made during the GET is picked up by the next poll
+        Long version = determineLatestVersion(launcher, workspace, listener, path);
 
-        if (this.useNonWorkingFolder) {
-            argBuildr.add("-nonworkingfolder", workspace.getRemote());
-        } else {
-            argBuildr.add("-workingfolder", workspace.getRemote());
+        String markerKey = serverName + "|" + repositoryName + "|" + path;
+        if (!location.getSubDirectory().isEmpty()) {
+            markerKey += "|" + location.getSubDirectory();
         }
-        
-        argBuildr.add(this.path);
-        boolean semResult = sem.tryAcquire(5, TimeUnit.MINUTES);
-        if(!semResult)
-        {
-            throw new AbortException("Failed to acquire semaphore.");
+        VaultSCMWorkspaceMarker marker = VaultSCMWorkspaceMarker.read(workspace, target, markerKey);
+
+        if (skipUnchangedGet && version != null && marker != null && marker.getVersion() == version.longValue()) {
+            if (marker.isIntact(target)) {
+                listener.getLogger().println("Workspace already holds version " + version + " of " + path + ", skipping the GET.");
+                return version;
+            }
+            listener.getLogger().println("Files fetched into " + target.getRemote() + " are missing, doing the GET.");
         }
 
-        int cmdResult = launcher.launch().cmds(argBuildr).envs(build.getEnvironment(TaskListener.NULL)).stdout(listener.getLogger()).pwd(workspace).join();
-        sem.release();
-        if (cmdResult == 0) {
-            final Run<?, ?> lastBuild = build.getPreviousBuild();
-            final Date lastBuildDate;
+        VaultSCMWorkspaceMarker.clear(workspace, markerKey);
 
-            if (lastBuild == null) {
-                lastBuildDate = new Date();
-                lastBuildDate.setTime(0); // default to January 1, 1970
-                listener.getLogger().print("Never been built.");
+        List<String> changedFiles = null;
+        if (incrementalGet) {
+            if (version == null || marker == null || marker.getVersion() > version.longValue()) {
+                listener.getLogger().println("Workspace version unknown, doing a full GET.");
             } else {
-                lastBuildDate = lastBuild.getTimestamp().getTime();
+                changedFiles = determineCheckedInFiles(pathToVault, launcher, workspace, listener, path, marker, version.longValue());
+                if (changedFiles == null) {
+                    listener.getLogger().println("Changes since version " + marker.getVersion() + " cannot be applied incrementally, doing a full GET.");
+                }
             }
+        }
 
-            Date now = new Date(); //defaults to current
-
-            if(changelogFile != null){
-                captureChangeLog(launcher, workspace, listener, lastBuildDate, now, changelogFile);
+        Integer mirrorResult = null;
+        if (useMirror && changedFiles == null) {
+            mirrorResult = getFromMirror(build, launcher, workspace, target, listener, pathToVault, path, version);
+            if (mirrorResult == null) {
+                listener.getLogger().println("No mirror available on this node, doing a GET into the workspace.");
             }
+        }
+
+        int cmdResult;
+        if (mirrorResult != null) {
+            cmdResult = mirrorResult.intValue();
+        } else if (changedFiles != null) {
+            listener.getLogger().println("Incremental GET of " + changedFiles.size() + " files changed since version " + marker.getVersion());
+            cmdResult = getFiles(build, launcher, workspace, target, listener, pathToVault, path, changedFiles);
         } else {
+            Integer shardResult = null;
+            if (getParallelGets() > 1) {
+                shardResult = getShards(build, launcher, workspace, target, listener, pathToVault, path);
+                if (shardResult == null) {
+                    listener.getLogger().println(path + " has no subfolders to GET in parallel, doing a single GET.");
+                }
+            }
+
+            if (shardResult != null) {
+                cmdResult = shardResult.intValue();
+            } else {
+                //populate the GET command
+                ArgumentListBuilder argBuildr = createGetCommand(pathToVault, target);
+                argBuildr.add(path);
+                cmdResult = runGet(build, launcher, workspace, listener, argBuildr);
+            }
+        }
+
+        if (cmdResult != 0) {
             throw new AbortException("Failed to pull vault contents.");
         }
 
-        listener.getLogger().println("Checkout completed.");
+        if (version != null) {
+            VaultSCMWorkspaceMarker.write(workspace, target, markerKey, version.longValue());
+            listener.getLogger().println("Fetched version " + version + " of " + path);
+        }
+        return version;
+    }
+
+    /**
+     * @return the start of the previous build, or January 1, 1970 if there is none.
+     */
+    private static Date getLastBuildDate(Run<?,?> build, TaskListener listener) {
+        final Run<?, ?> lastBuild = build.getPreviousBuild();
+        final Date lastBuildDate;
+
+        if (lastBuild == null) {
+            lastBuildDate = new Date();
+            lastBuildDate.setTime(0); // default to January 1, 1970
+            listener.getLogger().print("Never been built.");
+        } else {
+            lastBuildDate = lastBuild.getTimestamp().getTime();
+        }
+        return lastBuildDate;
     }
 
     @Override
@@ -466,158 +1094,1043 @@ public class VaultSCM extends SCM {
         return new VaultSCMChangeLogParser();
     }
 
-    private boolean captureChangeLog(Launcher launcher, FilePath workspace,
-            TaskListener listener, Date lastBuildDate, Date currentDate, File changelogFile) throws IOException, InterruptedException {
+    /**
+     * Writes the folder versions of the path after the baseline up to the
+     * given version to the changelog from the history index, newest first as
+     * the server lists them.
+     *
+     * Versions from before the changelog window are left out as
+     * captureChangeLog leaves them out.
+     *
+     * @param since when the baseline was fetched.
+     * @return whether the index had the versions, if not nothing was written.
+     */
+    private boolean writeChangeLogFromIndex(Launcher launcher, FilePath workspace, TaskListener listener,
+            String pathToVault, String path, long baseline, long version, Date since,
+            VaultSCMChangeLogWriter writer, Set<String> listed) throws IOException, InterruptedException {
+        Date windowStart = getChangeLogWindowStart(new Date());
+        VaultSCMHistoryIndex current = getHistoryIndex(path);
+        if (current != null && current.getBase() < 0 && windowStart.after(since)) {
+            //starting the index would query the server back to the baseline, outside the window
+            return false;
+        }
+        VaultSCMHistoryIndex index = updateHistoryIndex(launcher, workspace, listener, pathToVault, path, baseline, version, since);
+        if (index == null) {
+            return false;
+        }
 
-        boolean result = true;
+        final List<VaultSCMHistoryItem> versions = new ArrayList<VaultSCMHistoryItem>();
+        final List<List<VaultSCMAffectedFile>> files = new ArrayList<List<VaultSCMAffectedFile>>();
+        final VaultSCMPathTree paths = new VaultSCMPathTree();
+        boolean read = index.read(baseline, version, new VaultSCMHistoryIndex.Handler() {
+            public void version(VaultSCMHistoryItem item, List<VaultSCMHistoryItem> actions) {
+                List<VaultSCMAffectedFile> affected = new ArrayList<VaultSCMAffectedFile>();
+                for (VaultSCMHistoryItem action : actions) {
+                    String type = VaultSCMAffectedFile.forHistoryType(action.getType());
+                    if (type != null) {
+                        affected.add(new VaultSCMAffectedFile(paths.intern(action.getName()), type));
+                    }
+                }
+                versions.add(item);
+                files.add(affected.isEmpty() ? null : affected);
+            }
+        });
+        if (!read) {
+            return false;
+        }
 
-        String latestBuildDate = dateFormatter.format(lastBuildDate);
+        //the index may reach back further than the window, leave out what captureChangeLog would not ask for
+        int oldest = 0;
+        if (windowStart.after(since)) {
+            oldest = versions.size();
+            for (int i = versions.size() - 1; i >= 0; i--) {
+                Date date = parseDate(versions.get(i).getDate());
+                if (date == null) {
+                    return false;
+                }
+                if (date.before(windowStart)) {
+                    break;
+                }
+                oldest = i;
+            }
+            writer.markTruncated("Changes from more than " + DESCRIPTOR.getChangelogMaxDays() + " days ago are not listed.");
+        }
 
-        String today = dateFormatter.format(currentDate);
+        for (int i = versions.size() - 1; i >= oldest; i--) {
+            VaultSCMHistoryItem item = versions.get(i);
+            if (isChangeLogFull(writer)) {
+                break;
+            }
+            //a check-in to several of the paths is listed once
+            if (item.getTxid().isEmpty() || listed.add(item.getTxid())) {
+                writer.writeItem(item, files.get(i));
+            }
+        }
+        listener.getLogger().println("Changelog of " + path + " read from the history index.");
+        return true;
+    }
 
-        String pathToVault = getVaultPath(launcher, listener);
+    /**
+     * @return the history index of the path, or null if indexes are disabled.
+     */
+    private VaultSCMHistoryIndex getHistoryIndex(String path) {
+        if (DESCRIPTOR.getHistoryIndexMaxVersions() == 0) {
+            return null;
+        }
+        //what a user may see can differ, so the user is part of the key as it is for the history cache
+        return VaultSCMHistoryIndex.get(getHistoryIndexRoot(), serverName + "|" + repositoryName + "|" + userName + "|" + path);
+    }
 
-        if (pathToVault == null) {
-            return false;
+    private static File getHistoryIndexRoot() {
+        return new File(Jenkins.getInstance().getRootDir(), "caches/vault-scm-history");
+    }
+
+    /**
+     * Brings the history index of the path up to the given version, querying
+     * the server only for the versions after the latest one it holds. A new
+     * index starts after the baseline.
+     *
+     * @param since when the baseline was fetched, which bounds the file history of a new index.
+     * @return the index, or null if it is disabled or cannot cover the versions
+     *         after the baseline up to the given version, e.g. as older
+     *         versions have been dropped from it.
+     */
+    private VaultSCMHistoryIndex updateHistoryIndex(Launcher launcher, FilePath workspace, TaskListener listener,
+            String pathToVault, String path, long baseline, long version, Date since) throws IOException, InterruptedException {
+        VaultSCMHistoryIndex index = getHistoryIndex(path);
+        if (index == null) {
+            return null;
         }
 
-        FileOutputStream os = new FileOutputStream(changelogFile);
-        try {
-            BufferedOutputStream bos = new BufferedOutputStream(os);
-            try {
+        synchronized (index.updating) {
+            if (index.covers(baseline, version)) {
+                return index;
+            }
+            long base = index.getBase();
+            if (base >= 0 && baseline < base) {
+                listener.getLogger().println("Version " + baseline + " of " + path + " is older than the history index.");
+                return null;
+            }
 
-                ArgumentListBuilder argBuildr = new ArgumentListBuilder();
-                argBuildr.add(pathToVault);
-                argBuildr.add("VERSIONHISTORY");
+            long from = base < 0 ? baseline : index.getLatestVersion();
+            //start well before the last query, the server clock may differ from ours
+            long historySince = (base < 0 ? since.getTime() : index.getUpdated()) - TimeUnit.DAYS.toMillis(1);
+            long queried = System.currentTimeMillis();
 
-                if (!serverName.isEmpty()) {
-                    argBuildr.add("-host", serverName);
-                }
+            ArgumentListBuilder versions = createCommand(pathToVault, "VERSIONHISTORY");
+            versions.add("-beginversion", String.valueOf(from + 1));
+            versions.add(path);
+            List<VaultSCMHistoryItem> folderVersions = runHistoryCommand(launcher, workspace, listener, versions);
+            if (folderVersions == null) {
+                return null;
+            }
 
-                if (!userName.isEmpty()) {
-                    argBuildr.add("-user", userName);
+            final Map<String, List<VaultSCMHistoryItem>> actionsByTxid = new HashMap<String, List<VaultSCMHistoryItem>>();
+            for (VaultSCMHistoryItem item : folderVersions) {
+                if (item.getVersion() > from && !item.getTxid().isEmpty()) {
+                    actionsByTxid.put(item.getTxid(), new ArrayList<VaultSCMHistoryItem>());
                 }
-
-                if (!Secret.toString(password).isEmpty()) {
-                    argBuildr.add("-password");
-                    argBuildr.add(Secret.toString(password), true);
+            }
+            if (!actionsByTxid.isEmpty()) {
+                ArgumentListBuilder history = createCommand(pathToVault, "HISTORY");
+                history.add("-begindate", formatDate(new Date(historySince)));
+                //and end well after this one, for the same reason
+                history.add("-enddate", formatDate(new Date(queried + TimeUnit.DAYS.toMillis(1))));
+                history.add(path);
+
+                //the output goes to a file and only actions of the listed transactions are kept from it
+                File root = getHistoryIndexRoot();
+                root.mkdirs();
+                File historyFile = File.createTempFile("history", ".xml", root);
+                try {
+                    int cmdResult = runHistoryCommand(launcher, workspace, history, historyFile);
+                    if (cmdResult != 0) {
+                        listener.fatalError("HISTORY failed with exit code " + cmdResult);
+                        return null;
+                    }
+                    InputStream in = new BufferedInputStream(new FileInputStream(historyFile));
+                    try {
+                        VaultSCMHistoryItem.parse(in, new VaultSCMHistoryItem.Handler() {
+                            public void item(VaultSCMHistoryItem action) {
+                                List<VaultSCMHistoryItem> txActions = actionsByTxid.get(action.getTxid());
+                                if (txActions != null) {
+                                    txActions.add(action);
+                                }
+                            }
+                        });
+                    } finally {
+                        in.close();
+                    }
+                } finally {
+                    historyFile.delete();
                 }
+            }
 
-                if (!repositoryName.isEmpty()) {
-                    argBuildr.add("-repository", repositoryName);
-                }
+            index.append(baseline, folderVersions, actionsByTxid, queried, DESCRIPTOR.getHistoryIndexMaxVersions());
+            listener.getLogger().println("History index of " + path + " updated from version " + from + " to " + index.getLatestVersion() + ".");
+            return index.covers(baseline, version) ? index : null;
+        }
+    }
 
-                if (this.sslEnabled) {
-                    argBuildr.add("-ssl");
-                }
+    /**
+     * Formats a date for the command line. SimpleDateFormat is not thread-safe
+     * and the locations of a checkout are fetched on threads of their own, so
+     * every call gets its own.
+     */
+    private static String formatDate(Date date) {
+        return new SimpleDateFormat(VAULT_DATE_FORMAT).format(date);
+    }
+
+    /**
+     * Parses a date the client lists, either in the format it is given dates
+     * in or in its US default.
+     *
+     * @return the date, or null if it is in neither.
+     */
+    private static Date parseDate(String date) {
+        SimpleDateFormat[] formats = {new SimpleDateFormat(VAULT_DATE_FORMAT), new SimpleDateFormat("M/d/yyyy h:mm:ss a", Locale.US)};
+        for (SimpleDateFormat format : formats) {
+            try {
+                return format.parse(date);
+            } catch (ParseException e) {
+                //try the next one
+            }
+        }
+        return null;
+    }
 
-                argBuildr.add("-enddate", today);
-                argBuildr.add("-begindate", latestBuildDate);
-                argBuildr.add(this.path);
+    /**
+     * @return the earliest date changes are listed from, or the epoch if the window is not limited.
+     */
+    private static Date getChangeLogWindowStart(Date currentDate) {
+        int maxDays = DESCRIPTOR.getChangelogMaxDays();
+        if (maxDays == 0) {
+            return new Date(0);
+        }
+        return new Date(currentDate.getTime() - TimeUnit.DAYS.toMillis(maxDays));
+    }
 
-                boolean semResult = sem.tryAcquire(5, TimeUnit.MINUTES);
-                if(!semResult)
-                {
-                    throw new AbortException("Failed to acquire semaphore.");
-                }
+    /**
+     * @return whether the changelog holds as many changes as it may, in
+     *         which case it is marked truncated.
+     */
+    private static boolean isChangeLogFull(VaultSCMChangeLogWriter writer) {
+        int maxEntries = DESCRIPTOR.getChangelogMaxEntries();
+        if (maxEntries == 0 || writer.getItemCount() < maxEntries) {
+            return false;
+        }
+        writer.markTruncated("Only the " + maxEntries + " most recent changes are listed.");
+        return true;
+    }
+
+    /**
+     * Writes the folder versions of the path between the two dates to the
+     * changelog, each with the files its transaction touched. Changes before
+     * the configured window and beyond the configured number of entries are
+     * left out and the changelog is marked truncated, so that e.g. a first
+     * build does not list the whole history of the path.
+     *
+     * @param tempDir where the output of the history commands is kept while they are joined.
+     * @param listed the transactions already in the changelog, which are not written again.
+     */
+    private boolean captureChangeLog(Launcher launcher, FilePath workspace, TaskListener listener, String path,
+            Date lastBuildDate, Date currentDate, File tempDir, VaultSCMChangeLogWriter writer, Set<String> listed)
+            throws IOException, InterruptedException {
+
+        boolean result = true;
+
+        Date windowStart = getChangeLogWindowStart(currentDate);
+        if (lastBuildDate.before(windowStart)) {
+            lastBuildDate = windowStart;
+            writer.markTruncated("Changes from more than " + DESCRIPTOR.getChangelogMaxDays() + " days ago are not listed.");
+        }
+        if (isChangeLogFull(writer)) {
+            return true;
+        }
 
-                int cmdResult = launcher.launch().cmds(argBuildr).envs(new String[0]).stdout(bos).pwd(workspace).join();
+        String latestBuildDate = formatDate(lastBuildDate);
 
-                sem.release();
+        String today = formatDate(currentDate);
+
+        String pathToVault = getVaultPath(launcher, workspace, listener);
+
+        if (pathToVault == null) {
+            return false;
+        }
+
+        File versionsFile = File.createTempFile("versionhistory", ".xml", tempDir);
+        File historyFile = File.createTempFile("history", ".xml", tempDir);
+        try {
+            ArgumentListBuilder versions = createCommand(pathToVault, "VERSIONHISTORY");
+            int maxEntries = DESCRIPTOR.getChangelogMaxEntries();
+            if (maxEntries > 0) {
+                //one more than fits, so that the changelog is only marked truncated if something was left out
+                versions.add("-rowlimit", String.valueOf(maxEntries - writer.getItemCount() + 1));
+            }
+            versions.add("-enddate", today);
+            versions.add("-begindate", latestBuildDate);
+            versions.add(path);
+
+            int cmdResult = runHistoryCommand(launcher, workspace, versions, versionsFile);
+            if (cmdResult != 0) {
+                listener.fatalError("Changelog failed with exit code " + cmdResult);
+                result = false;
+            }
+
+            ArgumentListBuilder history = createCommand(pathToVault, "HISTORY");
+            history.add("-enddate", today);
+            history.add("-begindate", latestBuildDate);
+            history.add(path);
+
+            boolean withFiles = result;
+            if (result) {
+                cmdResult = runHistoryCommand(launcher, workspace, history, historyFile);
                 if (cmdResult != 0) {
-                    listener.fatalError("Changelog failed with exit code " + cmdResult);
-                    result = false;
+                    listener.fatalError("Changelog file history failed with exit code " + cmdResult + ", files will not be listed");
+                    withFiles = false;
                 }
+            }
 
-            } finally {
-                bos.close();
+            if (result) {
+                writeChangeLog(versionsFile, withFiles ? historyFile : null, writer, listed);
             }
         } finally {
-            os.close();
+            versionsFile.delete();
+            historyFile.delete();
         }
 
-        listener.getLogger().println("Changelog calculated successfully.");
-        listener.getLogger().println("Change log file: " + changelogFile.getAbsolutePath());
+        if (result) {
+            listener.getLogger().println("Changelog of " + path + " calculated successfully.");
+        }
 
         return result;
     }
 
+    /**
+     * Merges VERSIONHISTORY and HISTORY output into the changelog, joining
+     * them on the transaction ID. Only the file actions of the folder
+     * versions that are listed are kept, so memory use is bounded by the
+     * number of changelog entries rather than by the length of the file
+     * history.
+     *
+     * @param versionsFile the folder versions, already limited to the entries that fit.
+     * @param historyFile the file level history, or null to list no files.
+     * @param listed the transactions already written, e.g. for another path, which are skipped and added to.
+     */
+    private static void writeChangeLog(File versionsFile, File historyFile, final VaultSCMChangeLogWriter writer,
+            final Set<String> listed) throws IOException {
+        final Map<String, List<VaultSCMAffectedFile>> filesByTxid = new HashMap<String, List<VaultSCMAffectedFile>>();
+        if (historyFile != null) {
+            final Set<String> wanted = new HashSet<String>();
+            InputStream in = new BufferedInputStream(new FileInputStream(versionsFile));
+            try {
+                VaultSCMHistoryItem.parse(in, new VaultSCMHistoryItem.Handler() {
+                    public void item(VaultSCMHistoryItem item) {
+                        if (!item.getTxid().isEmpty() && !listed.contains(item.getTxid())) {
+                            wanted.add(item.getTxid());
+                        }
+                    }
+                });
+            } finally {
+                in.close();
+            }
+
+            final VaultSCMPathTree paths = new VaultSCMPathTree();
+            in = new BufferedInputStream(new FileInputStream(historyFile));
+            try {
+                VaultSCMHistoryItem.parse(in, new VaultSCMHistoryItem.Handler() {
+                    public void item(VaultSCMHistoryItem item) {
+                        String action = VaultSCMAffectedFile.forHistoryType(item.getType());
+                        if (action == null || !wanted.contains(item.getTxid())) {
+                            return;
+                        }
+                        List<VaultSCMAffectedFile> files = filesByTxid.get(item.getTxid());
+                        if (files == null) {
+                            files = new ArrayList<VaultSCMAffectedFile>();
+                            filesByTxid.put(item.getTxid(), files);
+                        }
+                        files.add(new VaultSCMAffectedFile(paths.intern(item.getName()), action));
+                    }
+                });
+            } finally {
+                in.close();
+            }
+        }
+
+        InputStream in = new BufferedInputStream(new FileInputStream(versionsFile));
+        try {
+            VaultSCMHistoryItem.parse(in, new VaultSCMHistoryItem.Handler() {
+                public void item(VaultSCMHistoryItem item) throws IOException {
+                    if (isChangeLogFull(writer)) {
+                        return;
+                    }
+                    //a check-in to several of the paths is listed once
+                    if (item.getTxid().isEmpty() || listed.add(item.getTxid())) {
+                        writer.writeItem(item, filesByTxid.get(item.getTxid()));
+                    }
+                }
+            });
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Counts the changes to the path between the two dates, stopping as soon
+     * as the first one is seen as polling only needs to know whether there
+     * are any. Nothing is written to disk.
+     *
+     * @throws AbortException if the client could not be run or failed, so
+     *         that the failure is not taken, and shared, as no changes.
+     */
     private int determineChangeCount(Launcher launcher, FilePath workspace,
-            TaskListener listener, Date lastBuildDate, Date currentDate, File changelogFile) throws IOException, InterruptedException {
-                listener.getLogger().println("Determine change count.");
-        int result = 0;
-        String latestBuildDate = dateFormatter.format(lastBuildDate);
-        String today = dateFormatter.format(currentDate);
-        String pathToVault = getVaultPath(launcher, listener);
+            TaskListener listener, String path, Date lastBuildDate, Date currentDate) throws IOException, InterruptedException {
+        listener.getLogger().println("Determine change count.");
+        String latestBuildDate = formatDate(lastBuildDate);
+        String today = formatDate(currentDate);
+        String pathToVault = getVaultPath(launcher, workspace, listener);
+
+        if (pathToVault == null) {
+            throw new AbortException("Failed to find Vault path.");
+        }
+
+        ArgumentListBuilder argBuildr = createCommand(pathToVault, "VERSIONHISTORY");
+        argBuildr.add("-rowlimit", "1");
+        argBuildr.add("-enddate", today);
+        argBuildr.add("-begindate", latestBuildDate);
+        argBuildr.add(path);
+
+        VaultSCMItemCounter counter = new VaultSCMItemCounter(1);
+        VaultSCMCommandStats.Execution execution = acquirePermit(VaultSCMConcurrencyLimiter.CommandType.HISTORY, argBuildr);
+        if(execution == null)
+        {
+            throw new AbortException("Failed to acquire semaphore.");
+        }
+
+        int cmdResult = -1;
+        try {
+            Proc proc = launcher.launch().cmds(argBuildr).envs(new String[0]).stdout(execution.output(counter)).pwd(workspace).start();
+            cmdResult = joinUnlessLimitReached(proc, counter);
+        } finally {
+            execution.finished(cmdResult);
+        }
+
+        if (cmdResult != 0 && !counter.isLimitReached()) {
+            throw new AbortException("Determine changes count failed with exit code " + cmdResult);
+        }
+
+        return counter.getCount();
+    }
+
+    /**
+     * Looks up the current version of the path with a single-row VERSIONHISTORY.
+     *
+     * @return the version, or null if it could not be determined.
+     */
+    private Long determineLatestVersion(Launcher launcher, FilePath workspace, TaskListener listener, String path) throws IOException, InterruptedException {
+        String pathToVault = getVaultPath(launcher, workspace, listener);
 
         if (pathToVault == null) {
-            return 0;
+            return null;
+        }
+
+        ArgumentListBuilder argBuildr = createCommand(pathToVault, "VERSIONHISTORY");
+        argBuildr.add("-rowlimit", "1");
+        argBuildr.add(path);
+
+        List<VaultSCMHistoryItem> items = runHistoryCommand(launcher, workspace, listener, argBuildr);
+        if (items == null) {
+            return null;
+        }
+
+        Long latest = null;
+        for (VaultSCMHistoryItem item : items) {
+            if (latest == null || item.getVersion() > latest.longValue()) {
+                latest = Long.valueOf(item.getVersion());
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Finds the files checked in between the workspace version and the given
+     * version, by matching the transactions of the folder versions in between
+     * against the file level history.
+     *
+     * @return the repository paths of the files, or null if the changes include
+     *         anything other than check-ins, or there are none to apply, and
+     *         need a full GET.
+     */
+    private List<String> determineCheckedInFiles(String pathToVault, Launcher launcher, FilePath workspace,
+            TaskListener listener, String path, VaultSCMWorkspaceMarker marker, long version) throws IOException, InterruptedException {
+        if (marker.getVersion() == version) {
+            //skipping unchanged GETs is opt-in and checks the workspace first, do not bypass that here
+            return null;
+        }
+
+        VaultSCMHistoryIndex index = updateHistoryIndex(launcher, workspace, listener, pathToVault, path,
+                marker.getVersion(), version, new Date(marker.getTimestamp()));
+        if (index != null) {
+            return determineCheckedInFiles(index, path, marker.getVersion(), version);
+        }
+
+        ArgumentListBuilder versions = createCommand(pathToVault, "VERSIONHISTORY");
+        versions.add("-beginversion", String.valueOf(marker.getVersion() + 1));
+        versions.add(path);
+        List<VaultSCMHistoryItem> folderVersions = runHistoryCommand(launcher, workspace, listener, versions);
+        if (folderVersions == null) {
+            return null;
+        }
+
+        final Set<String> txids = new HashSet<String>();
+        for (VaultSCMHistoryItem item : folderVersions) {
+            if (item.getVersion() > version) {
+                continue;
+            }
+            if (item.getTxid().isEmpty()) {
+                return null;
+            }
+            txids.add(item.getTxid());
+        }
+        if (txids.isEmpty()) {
+            return null;
         }
 
-        FileOutputStream os = new FileOutputStream(changelogFile);
+        //start well before the workspace was fetched and end well after now, the server clock may differ from ours
+        ArgumentListBuilder history = createCommand(pathToVault, "HISTORY");
+        history.add("-begindate", formatDate(new Date(marker.getTimestamp() - TimeUnit.DAYS.toMillis(1))));
+        history.add("-enddate", formatDate(new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1))));
+        history.add(path);
+
+        //the output goes to a file and is read as it is parsed, giving up at the first action that needs a full GET
+        final String prefix = getPathPrefix(path);
+        final Set<String> seen = new HashSet<String>();
+        final Set<String> files = new LinkedHashSet<String>();
+        final boolean[] incremental = {true};
+        File root = getHistoryIndexRoot();
+        root.mkdirs();
+        File historyFile = File.createTempFile("history", ".xml", root);
         try {
-            BufferedOutputStream bos = new BufferedOutputStream(os);
+            int cmdResult = runHistoryCommand(launcher, workspace, history, historyFile);
+            if (cmdResult != 0) {
+                listener.fatalError("HISTORY failed with exit code " + cmdResult);
+                return null;
+            }
+            InputStream in = new BufferedInputStream(new FileInputStream(historyFile));
             try {
-                ArgumentListBuilder argBuildr = new ArgumentListBuilder();
-                argBuildr.add(pathToVault);
-                argBuildr.add("VERSIONHISTORY");
+                VaultSCMHistoryItem.parse(in, new VaultSCMHistoryItem.Handler() {
+                    public void item(VaultSCMHistoryItem action) {
+                        if (!incremental[0] || !txids.contains(action.getTxid())) {
+                            return;
+                        }
+                        if (action.getType() != VaultSCMHistoryItem.TYPE_CHECK_IN || !action.getName().startsWith(prefix)) {
+                            incremental[0] = false;
+                            return;
+                        }
+                        seen.add(action.getTxid());
+                        files.add(action.getName());
+                        if (files.size() > MAX_INCREMENTAL_FILES) {
+                            incremental[0] = false;
+                        }
+                    }
+                });
+            } finally {
+                in.close();
+            }
+        } finally {
+            historyFile.delete();
+        }
 
-                if (!serverName.isEmpty()) {
-                    argBuildr.add("-host", serverName);
-                }
+        if (!incremental[0] || !seen.containsAll(txids)) {
+            return null;
+        }
+        return new ArrayList<String>(files);
+    }
 
-                if (!userName.isEmpty()) {
-                    argBuildr.add("-user", userName);
+    /**
+     * Finds the files checked in between the two versions from the history index.
+     *
+     * @return the repository paths of the files, or null if they cannot be
+     *         determined or the changes need a full GET.
+     */
+    private static List<String> determineCheckedInFiles(VaultSCMHistoryIndex index, String path, long baseline, long version) throws IOException {
+        final String prefix = getPathPrefix(path);
+        final Set<String> files = new LinkedHashSet<String>();
+        final boolean[] incremental = {true};
+        boolean read = index.read(baseline, version, new VaultSCMHistoryIndex.Handler() {
+            public void version(VaultSCMHistoryItem item, List<VaultSCMHistoryItem> actions) {
+                if (item.getTxid().isEmpty() || actions.isEmpty()) {
+                    incremental[0] = false;
                 }
-
-                if (!Secret.toString(password).isEmpty()) {
-                    argBuildr.add("-password");
-                    argBuildr.add(Secret.toString(password), true);
+                for (VaultSCMHistoryItem action : actions) {
+                    if (action.getType() != VaultSCMHistoryItem.TYPE_CHECK_IN || !action.getName().startsWith(prefix)) {
+                        incremental[0] = false;
+                    }
+                    files.add(action.getName());
                 }
+            }
+        });
 
-                if (!repositoryName.isEmpty()) {
-                    argBuildr.add("-repository", repositoryName);
-                }
+        if (!read || !incremental[0] || files.isEmpty() || files.size() > MAX_INCREMENTAL_FILES) {
+            return null;
+        }
+        return new ArrayList<String>(files);
+    }
 
-                if (this.sslEnabled) {
-                    argBuildr.add("-ssl");
-                }
+    /**
+     * Brings the mirror of the path on the workspace's node up to the given
+     * version, unless it already is, and copies it into the target folder. The
+     * mirror always uses a working folder and overwrites local changes, as
+     * nobody edits it. Afterwards the least recently used mirrors are deleted
+     * if the node holds more than the configured limit.
+     *
+     * @return the exit code, or null if there is no mirror for this node or
+     *         the version is unknown.
+     */
+    private Integer getFromMirror(Run<?,?> build, Launcher launcher, FilePath workspace, FilePath target, TaskListener listener,
+            String pathToVault, String path, Long version) throws IOException, InterruptedException {
+        Computer computer = workspace.toComputer();
+        Node node = computer == null ? null : computer.getNode();
+        FilePath nodeRoot = node == null ? null : node.getRootPath();
+        if (nodeRoot == null || version == null) {
+            return null;
+        }
 
-                argBuildr.add("-enddate", today);
-                argBuildr.add("-begindate", latestBuildDate);
-                argBuildr.add(this.path);
+        //the options that change what a GET writes are part of the key, so jobs only share identical mirrors
+        String key = serverName + "|" + repositoryName + "|" + userName + "|" + path + "|" + fileTime + "|" + makeWritableEnabled;
+        VaultSCMMirror mirror = new VaultSCMMirror(computer.getName(), nodeRoot, key);
+        FilePath directory = mirror.getDirectory();
+        ReadWriteLock lock = mirror.getLock();
+        boolean updated = false;
 
-                boolean semResult = sem.tryAcquire(5, TimeUnit.MINUTES);
-                if(!semResult)
-                {
-                    return 0;
+        lock.writeLock().lockInterruptibly();
+        try {
+            VaultSCMWorkspaceMarker marker = VaultSCMWorkspaceMarker.read(directory, directory, key);
+            if (marker == null || marker.getVersion() != version.longValue()) {
+                VaultSCMWorkspaceMarker.clear(directory, key);
+                directory.mkdirs();
+                listener.getLogger().println("Updating the mirror of " + path + " in " + directory.getRemote() + " to version " + version);
+                ArgumentListBuilder argBuildr = createCommand(pathToVault, "GET");
+                VaultSCMCommands.addGetOptions(argBuildr, verboseEnabled, makeWritableEnabled, "overwrite", fileTime,
+                        false, directory.getRemote());
+                argBuildr.add("-performdeletions", "removeworkingcopy");
+                argBuildr.add(path);
+                int cmdResult = runGet(build, launcher, directory, listener, argBuildr);
+                if (cmdResult != 0) {
+                    return cmdResult;
                 }
+                VaultSCMWorkspaceMarker.write(directory, directory, key, version.longValue());
+                updated = true;
+            }
 
-                int cmdResult = launcher.launch().cmds(argBuildr).envs(new String[0]).stdout(bos).pwd(workspace).join();
-                sem.release();
-                if (cmdResult != 0) {
-                    listener.fatalError("Determine changes count failed with exit code " + cmdResult);
-                    result = 0;
+            //other executors may copy from the mirror at the same time, but not update it
+            lock.readLock().lock();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        try {
+            FilePath manifest = WorkspaceList.tempDir(workspace).child("vault-mirror-" + Util.getDigestOf(target.getRemote()) + ".txt");
+            int[] counts = mirror.copyTo(target, manifest, DESCRIPTOR.getMirrorHardLinks());
+            listener.getLogger().println((DESCRIPTOR.getMirrorHardLinks() ? "Linked " : "Copied ") + counts[0]
+                    + " files from the mirror of " + path + " at version " + version + ", deleted " + counts[1]
+                    + " files no longer in it");
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (updated) {
+            VaultSCMMirror.evict(computer.getName(), nodeRoot, DESCRIPTOR.getMirrorSizeLimitMB() * 1024L * 1024L, listener);
+        }
+        return 0;
+    }
+
+    /**
+     * GETs the given files of the path into their folders below the target
+     * folder, one command per folder.
+     */
+    private int getFiles(Run<?,?> build, Launcher launcher, FilePath workspace, FilePath root, TaskListener listener,
+            String pathToVault, String path, List<String> files) throws IOException, InterruptedException {
+        String prefix = getPathPrefix(path);
+        Map<String, List<String>> byFolder = new TreeMap<String, List<String>>();
+        for (String file : files) {
+            String folder = file.substring(prefix.length(), Math.max(prefix.length(), file.lastIndexOf('/')));
+            List<String> inFolder = byFolder.get(folder);
+            if (inFolder == null) {
+                inFolder = new ArrayList<String>();
+                byFolder.put(folder, inFolder);
+            }
+            inFolder.add(file);
+        }
+
+        List<ArgumentListBuilder> commands = new ArrayList<ArgumentListBuilder>();
+        for (Map.Entry<String, List<String>> folder : byFolder.entrySet()) {
+            FilePath target = folder.getKey().isEmpty() ? root : root.child(folder.getKey());
+            //working folder assignments belong to the client and user, not the workspace, so always name the folder
+            ArgumentListBuilder argBuildr = new ArgumentListBuilder();
+            addGetOptions(argBuildr, target);
+            for (String file : folder.getValue()) {
+                argBuildr.add(file);
+            }
+            commands.add(argBuildr);
+        }
+
+        if (DESCRIPTOR.getUseBatchSessions() && commands.size() > 1) {
+            int cmdResult = runBatch(build, launcher, workspace, listener, pathToVault, commands);
+            if (cmdResult == 0) {
+                return 0;
+            }
+            //the session may have ended part way, GETs are safe to repeat so run each on its own
+            listener.getLogger().println("The Vault session failed with exit code " + cmdResult + ", running the GETs one by one.");
+        }
+
+        for (ArgumentListBuilder command : commands) {
+            ArgumentListBuilder argBuildr = createCommand(pathToVault, "GET");
+            argBuildr.add(command.toList());
+            int cmdResult = runGet(build, launcher, workspace, listener, argBuildr);
+            if (cmdResult != 0) {
+                return cmdResult;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Runs several GETs, given as their options and items, through one BATCH
+     * command, so the client starts and logs in once rather than once per command.
+     */
+    private int runBatch(Run<?,?> build, Launcher launcher, FilePath workspace, TaskListener listener,
+            String pathToVault, List<ArgumentListBuilder> commands) throws IOException, InterruptedException {
+        StringBuilder script = new StringBuilder();
+        for (ArgumentListBuilder command : commands) {
+            script.append("GET ").append(command.toStringWithQuote()).append("\r\n");
+        }
+
+        FilePath batchFile = WorkspaceList.tempDir(workspace).child("vault-batch.txt");
+        batchFile.getParent().mkdirs();
+        batchFile.write(script.toString(), "UTF-8");
+        try {
+            listener.getLogger().println("Running " + commands.size() + " GETs in one Vault session.");
+            ArgumentListBuilder argBuildr = createCommand(pathToVault, "BATCH");
+            argBuildr.add(batchFile.getRemote());
+            return runGet(build, launcher, workspace, listener, argBuildr);
+        } finally {
+            batchFile.delete();
+        }
+    }
+
+    /**
+     * GETs each top-level subfolder of the path with its own command, running
+     * up to {@link #getParallelGets()} of them at once, and the files directly
+     * in the path with one more. Every command takes a GET slot, so the
+     * per-repository limit still applies. Each line of output is prefixed
+     * with the part it belongs to.
+     *
+     * @return the exit code, non-zero if any part failed, or null if the path
+     *         could not be listed or has fewer than two subfolders.
+     */
+    private Integer getShards(final Run<?,?> build, final Launcher launcher, final FilePath workspace, FilePath target,
+            final TaskListener listener, String pathToVault, String path) throws IOException, InterruptedException {
+        ArgumentListBuilder list = createCommand(pathToVault, "LISTFOLDER");
+        list.add("-norecursive");
+        list.add(path);
+        byte[] output = runQuery(launcher, workspace, listener, list);
+        if (output == null) {
+            return null;
+        }
+        VaultSCMFolderListing listing = VaultSCMFolderListing.parse(new ByteArrayInputStream(output));
+        if (listing.getFolders().size() < 2) {
+            return null;
+        }
+
+        String prefix = getPathPrefix(path);
+        Map<String, ArgumentListBuilder> shards = new LinkedHashMap<String, ArgumentListBuilder>();
+        for (String folder : listing.getFolders()) {
+            ArgumentListBuilder argBuildr = createGetCommand(pathToVault, target.child(folder));
+            argBuildr.add(prefix + folder);
+            shards.put(prefix + folder, argBuildr);
+        }
+        if (!listing.getFiles().isEmpty()) {
+            ArgumentListBuilder argBuildr = createGetCommand(pathToVault, target);
+            for (String file : listing.getFiles()) {
+                argBuildr.add(prefix + file);
+            }
+            shards.put(prefix + "*", argBuildr);
+        }
+
+        int threads = Math.min(getParallelGets(), shards.size());
+        listener.getLogger().println("GET of " + path + " in " + shards.size() + " parts, " + threads + " at a time.");
+        if (DESCRIPTOR.getMaxConcurrentGets() < threads) {
+            listener.getLogger().println("At most " + DESCRIPTOR.getMaxConcurrentGets() + " GETs run at once against " + repositoryName + ".");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new NamingThreadFactory(new DaemonThreadFactory(), "Vault GET of " + path));
+        try {
+            Map<String, Future<Integer>> results = new LinkedHashMap<String, Future<Integer>>();
+            for (final Map.Entry<String, ArgumentListBuilder> shard : shards.entrySet()) {
+                results.put(shard.getKey(), executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        OutputStream out = new PrefixedOutputStream(listener.getLogger(), "[" + shard.getKey() + "] ");
+                        try {
+                            return runGet(build, launcher, workspace, shard.getValue(), out);
+                        } finally {
+                            out.close();
+                        }
+                    }
+                }));
+            }
+
+            //wait for all parts, so that none is left running when this returns
+            List<String> failures = new ArrayList<String>();
+            for (Map.Entry<String, Future<Integer>> result : results.entrySet()) {
+                try {
+                    int exitCode = result.getValue().get().intValue();
+                    if (exitCode != 0) {
+                        failures.add(result.getKey() + " failed with exit code " + exitCode);
+                    }
+                } catch (ExecutionException e) {
+                    failures.add(result.getKey() + " failed: " + e.getCause());
                 }
+            }
 
-            } finally {
-                bos.close();
+            for (String failure : failures) {
+                listener.error("GET of " + failure);
+            }
+            return failures.isEmpty() ? 0 : 1;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Passes whole lines on to a log shared with other threads, each with a prefix.
+     */
+    private static final class PrefixedOutputStream extends LineTransformationOutputStream {
+
+        private final PrintStream logger;
+        private final byte[] prefix;
+
+        PrefixedOutputStream(PrintStream logger, String prefix) {
+            this.logger = logger;
+            this.prefix = prefix.getBytes(Charset.defaultCharset());
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            synchronized (logger) {
+                logger.write(prefix);
+                logger.write(b, 0, len);
             }
+        }
+
+        @Override
+        public void close() throws IOException {
+            //flushes a last line without end of line, the log itself stays open
+            super.close();
+            logger.flush();
+        }
+    }
+
+    /**
+     * @return the path with a trailing slash, the prefix of everything below it.
+     */
+    static String getPathPrefix(String path) {
+        return path.endsWith("/") ? path : path + "/";
+    }
+
+    /**
+     * Starts a GET command line with the options of this job.
+     *
+     * @param target the folder to GET into, or null to use the existing working folder.
+     */
+    private ArgumentListBuilder createGetCommand(String pathToVault, FilePath target) {
+        ArgumentListBuilder argBuildr = createCommand(pathToVault, "GET");
+        addGetOptions(argBuildr, target);
+        return argBuildr;
+    }
+
+    private void addGetOptions(ArgumentListBuilder argBuildr, FilePath target) {
+        VaultSCMCommands.addGetOptions(argBuildr, verboseEnabled, makeWritableEnabled, merge, fileTime,
+                useNonWorkingFolder, target == null ? null : target.getRemote());
+    }
+
+    private int runGet(Run<?,?> build, Launcher launcher, FilePath workspace, TaskListener listener,
+            ArgumentListBuilder argBuildr) throws IOException, InterruptedException {
+        return runGet(build, launcher, workspace, argBuildr, listener.getLogger());
+    }
+
+    private int runGet(Run<?,?> build, Launcher launcher, FilePath workspace, ArgumentListBuilder argBuildr,
+            OutputStream out) throws IOException, InterruptedException {
+        VaultSCMCommandStats.Execution execution = acquirePermit(VaultSCMConcurrencyLimiter.CommandType.GET, argBuildr);
+        if(execution == null)
+        {
+            throw new AbortException("Failed to acquire semaphore.");
+        }
+
+        int cmdResult = -1;
+        try {
+            cmdResult = launcher.launch().cmds(argBuildr).envs(build.getEnvironment(TaskListener.NULL))
+                    .stdout(execution.output(out)).pwd(workspace).join();
+            return cmdResult;
+        } finally {
+            execution.finished(cmdResult);
+        }
+    }
+
+    /**
+     * Looks up the current version of one of the job's paths, for {@link VaultSCMFileSystem}.
+     *
+     * @param dir the folder the client runs in.
+     * @return the version, or null if it could not be determined.
+     */
+    Long getLatestVersion(Launcher launcher, FilePath dir, TaskListener listener, String path) throws IOException, InterruptedException {
+        return determineLatestVersion(launcher, dir, listener, path);
+    }
+
+    /**
+     * Lists a folder of the repository, for {@link VaultSCMFileSystem}.
+     *
+     * @return the listing, or null if the client failed, e.g. as there is no such folder.
+     */
+    VaultSCMFolderListing listFolder(Launcher launcher, FilePath dir, TaskListener listener, String folder)
+            throws IOException, InterruptedException {
+        String pathToVault = getVaultPath(launcher, dir, listener);
+        if (pathToVault == null) {
+            return null;
+        }
+        ArgumentListBuilder argBuildr = createCommand(pathToVault, "LISTFOLDER");
+        argBuildr.add("-norecursive");
+        argBuildr.add(folder);
+        byte[] output = runQuery(launcher, dir, listener, argBuildr);
+        return output == null ? null : VaultSCMFolderListing.parse(new ByteArrayInputStream(output));
+    }
+
+    /**
+     * GETs a single file of the repository into the target folder, for
+     * {@link VaultSCMFileSystem}. The target is a non-working folder, so no
+     * working folder assignment changes.
+     *
+     * @param dir the folder the client runs in.
+     * @return whether the GET succeeded.
+     */
+    boolean getFile(Launcher launcher, FilePath dir, TaskListener listener, String file, FilePath target)
+            throws IOException, InterruptedException {
+        String pathToVault = getVaultPath(launcher, dir, listener);
+        if (pathToVault == null) {
+            return false;
+        }
+        ArgumentListBuilder argBuildr = createCommand(pathToVault, "GET");
+        VaultSCMCommands.addGetOptions(argBuildr, false, true, "overwrite", "checkin", true, target.getRemote());
+        argBuildr.add(file);
+
+        VaultSCMCommandStats.Execution execution = acquirePermit(VaultSCMConcurrencyLimiter.CommandType.GET, argBuildr);
+        if(execution == null)
+        {
+            return false;
+        }
+
+        int cmdResult = -1;
+        try {
+            cmdResult = launcher.launch().cmds(argBuildr).envs(new String[0]).stdout(execution.output(listener.getLogger()))
+                    .pwd(dir).join();
         } finally {
-            os.close();
+            execution.finished(cmdResult);
+        }
+        return cmdResult == 0;
+    }
+
+    /**
+     * Runs a HISTORY or VERSIONHISTORY command and parses its output.
+     *
+     * @return the items, or null if the command failed.
+     */
+    private List<VaultSCMHistoryItem> runHistoryCommand(Launcher launcher, FilePath workspace, TaskListener listener,
+            ArgumentListBuilder argBuildr) throws IOException, InterruptedException {
+        byte[] output = runQuery(launcher, workspace, listener, argBuildr);
+        if (output == null) {
+            return null;
+        }
+        return VaultSCMHistoryItem.parse(new ByteArrayInputStream(output));
+    }
+
+    /**
+     * Runs a read-only command, such as VERSIONHISTORY or LISTFOLDER.
+     *
+     * @return the output, or null if the command failed.
+     */
+    private byte[] runQuery(Launcher launcher, FilePath workspace, TaskListener listener,
+            ArgumentListBuilder argBuildr) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VaultSCMCommandStats.Execution execution = acquirePermit(VaultSCMConcurrencyLimiter.CommandType.HISTORY, argBuildr);
+        if(execution == null)
+        {
+            return null;
         }
 
+        int cmdResult = -1;
         try {
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Document doc = db.parse(changelogFile);
-            doc.getDocumentElement().normalize();
-            NodeList nodeLst = doc.getElementsByTagName("item");
-            result = nodeLst.getLength();
-        } catch (Exception e) {
-            e.printStackTrace();
+            cmdResult = launcher.launch().cmds(argBuildr).envs(new String[0]).stdout(execution.output(out)).pwd(workspace).join();
+        } finally {
+            execution.finished(cmdResult);
         }
 
-        return result;
+        if (cmdResult != 0) {
+            listener.fatalError(argBuildr.toList().get(1) + " failed with exit code " + cmdResult);
+            return null;
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Runs a HISTORY or VERSIONHISTORY command with its output going to a file.
+     *
+     * @return the exit code of the command.
+     */
+    private int runHistoryCommand(Launcher launcher, FilePath workspace, ArgumentListBuilder argBuildr,
+            File outputFile) throws IOException, InterruptedException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile));
+        try {
+            VaultSCMCommandStats.Execution execution = acquirePermit(VaultSCMConcurrencyLimiter.CommandType.HISTORY, argBuildr);
+            if(execution == null)
+            {
+                throw new AbortException("Failed to acquire semaphore.");
+            }
+
+            int cmdResult = -1;
+            try {
+                cmdResult = launcher.launch().cmds(argBuildr).envs(new String[0]).stdout(execution.output(out)).pwd(workspace).join();
+                return cmdResult;
+            } finally {
+                execution.finished(cmdResult);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Waits for the process to finish, killing it early once the counter has
+     * seen enough items.
+     */
+    private static int joinUnlessLimitReached(Proc proc, VaultSCMItemCounter counter) throws IOException, InterruptedException {
+        while (proc.isAlive()) {
+            if (counter.isLimitReached()) {
+                proc.kill();
+                return 0;
+            }
+            Thread.sleep(100);
+        }
+        return proc.join();
+    }
+
+    /**
+     * Starts a Vault client command line with the connection options of this job.
+     * In some cases username, host and password can be empty e.g. if rememberlogin
+     * is used to store login data.
+     */
+    private ArgumentListBuilder createCommand(String pathToVault, String command) {
+        return VaultSCMCommands.create(pathToVault, command, serverName, userName, password, repositoryName, sslEnabled);
     }
 }
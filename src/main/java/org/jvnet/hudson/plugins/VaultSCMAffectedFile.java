@@ -0,0 +1,92 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.scm.ChangeLogSet;
+import hudson.scm.EditType;
+
+/**
+ * A file or folder touched by a changelog entry, and what was done to it.
+ *
+ * @author Stuart Whelan
+ */
+public final class VaultSCMAffectedFile implements ChangeLogSet.AffectedFile {
+
+    public static final String ADD = "add";
+    public static final String DELETE = "delete";
+    public static final String RENAME = "rename";
+    public static final String MODIFY = "modify";
+
+    private final VaultSCMPathTree.Node path;
+    private final String action;
+
+    VaultSCMAffectedFile(VaultSCMPathTree.Node path, String action) {
+        this.path = path;
+        this.action = action;
+    }
+
+    /**
+     * @return the repository path, e.g. $/folder/file.txt.
+     */
+    public String getPath() {
+        return path.getPath();
+    }
+
+    /**
+     * @return one of {@link #ADD}, {@link #DELETE}, {@link #RENAME} or {@link #MODIFY}.
+     */
+    public String getAction() {
+        return action;
+    }
+
+    public EditType getEditType() {
+        if (ADD.equals(action)) {
+            return EditType.ADD;
+        }
+        if (DELETE.equals(action)) {
+            return EditType.DELETE;
+        }
+        return EditType.EDIT;
+    }
+
+    /**
+     * Maps a HISTORY action type to the action recorded in the changelog.
+     * Branches, shares and snapshots bring items into the folder, so they
+     * are additions. Unpinning an item brings it up to its latest version.
+     *
+     * @return the action, or null for history entries that do not change the
+     *         content of the workspace, such as labels, pins, property changes
+     *         and obliterations of already deleted items, and for unknown types.
+     */
+    static String forHistoryType(int type) {
+        switch (type) {
+            case VaultSCMHistoryItem.TYPE_ADDED:
+            case VaultSCMHistoryItem.TYPE_BRANCHED_FROM:
+            case VaultSCMHistoryItem.TYPE_BRANCHED_FROM_ITEM:
+            case VaultSCMHistoryItem.TYPE_BRANCHED_FROM_SHARE:
+            case VaultSCMHistoryItem.TYPE_BRANCHED_FROM_SHARE_ITEM:
+            case VaultSCMHistoryItem.TYPE_CREATED:
+            case VaultSCMHistoryItem.TYPE_SHARED_TO:
+            case VaultSCMHistoryItem.TYPE_SNAPSHOT_FROM:
+            case VaultSCMHistoryItem.TYPE_SNAPSHOT_ITEM:
+            case VaultSCMHistoryItem.TYPE_UNDELETED:
+                return ADD;
+            case VaultSCMHistoryItem.TYPE_CHECK_IN:
+            case VaultSCMHistoryItem.TYPE_ROLLBACK:
+            case VaultSCMHistoryItem.TYPE_UNPINNED:
+                return MODIFY;
+            case VaultSCMHistoryItem.TYPE_DELETED:
+                return DELETE;
+            case VaultSCMHistoryItem.TYPE_MOVED_FROM:
+            case VaultSCMHistoryItem.TYPE_MOVED_TO:
+            case VaultSCMHistoryItem.TYPE_RENAMED:
+            case VaultSCMHistoryItem.TYPE_RENAMED_ITEM:
+                return RENAME;
+            case VaultSCMHistoryItem.TYPE_LABEL:
+            case VaultSCMHistoryItem.TYPE_OBLITERATED:
+            case VaultSCMHistoryItem.TYPE_PINNED:
+            case VaultSCMHistoryItem.TYPE_PROPERTY_CHANGE:
+            case VaultSCMHistoryItem.TYPE_SNAPSHOT:
+            default:
+                return null;
+        }
+    }
+}
@@ -13,11 +13,8 @@ import hudson.scm.ChangeLogSet.Entry;
 
 import java.io.File;
 import java.io.IOException;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
 import org.xml.sax.SAXException;
 import org.jvnet.hudson.plugins.VaultSCMChangeLogSet.VaultSCMChangeLogSetEntry;
 
@@ -27,38 +24,51 @@ public class VaultSCMChangeLogParser extends ChangeLogParser {
     @SuppressWarnings("rawtypes")
     public ChangeLogSet<? extends Entry> parse(Run build, RepositoryBrowser<?> browser, File changelogFile) throws IOException, SAXException {
 
-        String userName;
-        String date;
-        String comment;
-        String version;
+        //compressed changelogs are read from disk each time they are iterated
+        if (VaultSCMChangeLogReader.isCompressed(changelogFile)) {
+            return new VaultSCMChangeLogSet(build, browser, changelogFile);
+        }
+
         //open the changelog File
         VaultSCMChangeLogSet cls = new VaultSCMChangeLogSet(build, browser);
         try {
-
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Document doc = db.parse(changelogFile);
-            doc.getDocumentElement().normalize();
-            NodeList nodeLst = doc.getElementsByTagName("item");
-
-            for (int s = 0; s < nodeLst.getLength(); s++) {
-
-                Element mostRecentChange = (Element) nodeLst.item(s);
-                userName = mostRecentChange.getAttribute("user");
-                date = mostRecentChange.getAttribute("date");
-                comment = mostRecentChange.getAttribute("comment");
-                version = mostRecentChange.getAttribute("version");
-
-                VaultSCMChangeLogSetEntry next = new VaultSCMChangeLogSetEntry(comment, version, date, cls, userName);
-                if (!cls.addEntry(next)) {
-                    break;
+            //entries are built straight from the event stream so only one item is in memory at a time
+            VaultSCMChangeLogReader reader = new VaultSCMChangeLogReader(cls, changelogFile);
+            try {
+                VaultSCMChangeLogSetEntry next;
+                while ((next = reader.next()) != null) {
+                    if (!cls.addEntry(next)) {
+                        break;
+                    }
                 }
+                cls.setTruncatedReasons(reader.getTruncatedReasons());
+            } finally {
+                reader.close();
             }
-
-        } catch (Exception e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
 
         return cls;
     }
+
+    /**
+     * Creates a StAX factory that refuses DTDs and external entities, as the
+     * changelog is produced by an external program.
+     */
+    static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+    /**
+     * Returns the attribute value, or an empty string when it is missing, as
+     * the DOM parser used to.
+     */
+    static String attribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value == null ? "" : value;
+    }
 }
@@ -0,0 +1,140 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.jvnet.hudson.plugins.VaultSCMChangeLogSet.VaultSCMChangeLogSetEntry;
+
+/**
+ * Reads changelog entries one at a time from a plain or gzip compressed
+ * changelog file.
+ *
+ * @author Stuart Whelan
+ */
+final class VaultSCMChangeLogReader implements Closeable {
+
+    private final VaultSCMChangeLogSet parent;
+    private final InputStream in;
+    private final XMLStreamReader reader;
+    private final List<String> truncatedReasons = new ArrayList<String>();
+
+    VaultSCMChangeLogReader(VaultSCMChangeLogSet parent, File changelogFile) throws IOException {
+        this.parent = parent;
+        this.in = open(changelogFile);
+        try {
+            this.reader = VaultSCMChangeLogParser.newInputFactory().createXMLStreamReader(in);
+        } catch (XMLStreamException e) {
+            in.close();
+            throw new IOException("Failed to read " + changelogFile, e);
+        }
+    }
+
+    /**
+     * @return the next entry, or null at the end of the changelog.
+     */
+    VaultSCMChangeLogSetEntry next() throws IOException {
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                if ("truncated".equals(reader.getLocalName())) {
+                    truncatedReasons.add(VaultSCMChangeLogParser.attribute(reader, "reason"));
+                    continue;
+                }
+                if (!"item".equals(reader.getLocalName())) {
+                    continue;
+                }
+
+                String userName = parent.intern(VaultSCMChangeLogParser.attribute(reader, "user"));
+                String date = parent.intern(VaultSCMChangeLogParser.attribute(reader, "date"));
+                String comment = VaultSCMChangeLogParser.attribute(reader, "comment");
+                String version = VaultSCMChangeLogParser.attribute(reader, "version");
+
+                return new VaultSCMChangeLogSetEntry(comment, version, date, parent, userName, readFiles());
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to parse changelog", e);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the file elements of the current item. Changelogs written before
+     * files were recorded have none.
+     */
+    private List<VaultSCMAffectedFile> readFiles() throws XMLStreamException {
+        List<VaultSCMAffectedFile> files = null;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT && "item".equals(reader.getLocalName())) {
+                break;
+            }
+            if (event == XMLStreamConstants.START_ELEMENT && "file".equals(reader.getLocalName())) {
+                if (files == null) {
+                    files = new ArrayList<VaultSCMAffectedFile>();
+                }
+                files.add(new VaultSCMAffectedFile(
+                        parent.getPathTree().intern(VaultSCMChangeLogParser.attribute(reader, "name")),
+                        VaultSCMChangeLogParser.attribute(reader, "action")));
+            }
+        }
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        return files;
+    }
+
+    /**
+     * @return why changes were left out of the changelog, complete once
+     *         {@link #next()} has returned null.
+     */
+    List<String> getTruncatedReasons() {
+        return truncatedReasons;
+    }
+
+    public void close() throws IOException {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return whether the file starts with the gzip magic number.
+     */
+    static boolean isCompressed(File changelogFile) throws IOException {
+        InputStream in = new FileInputStream(changelogFile);
+        try {
+            return in.read() == 0x1f && in.read() == 0x8b;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static InputStream open(File changelogFile) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(changelogFile));
+        if (isCompressed(changelogFile)) {
+            try {
+                return new GZIPInputStream(in);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+        return in;
+    }
+}
@@ -11,46 +11,245 @@ import hudson.scm.ChangeLogSet;
 import hudson.scm.EditType;
 import hudson.scm.RepositoryBrowser;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.jvnet.hudson.plugins.VaultSCMChangeLogSet.VaultSCMChangeLogSetEntry;
 import org.kohsuke.stapler.export.Exported;
 
 public final class VaultSCMChangeLogSet extends ChangeLogSet<VaultSCMChangeLogSetEntry> {
 
+    private static final Logger LOG = Logger.getLogger(VaultSCMChangeLogSet.class.getName());
+
     protected VaultSCMChangeLogSet(Run<?,?> run, RepositoryBrowser<?> browser) {
         super(run, browser);
         changes = new ArrayList<VaultSCMChangeLogSetEntry>();
+        changelogFile = null;
+    }
+
+    /**
+     * Creates a set whose entries are read from the changelog file each time
+     * it is iterated, rather than held in memory.
+     */
+    protected VaultSCMChangeLogSet(Run<?,?> run, RepositoryBrowser<?> browser, File changelogFile) {
+        super(run, browser);
+        changes = null;
+        this.changelogFile = changelogFile;
+        //not known until the file has been read to the end
+        truncatedReasons = null;
     }
 
     public Iterator<VaultSCMChangeLogSetEntry> iterator() {
-        return changes.iterator();
+        if (changelogFile == null) {
+            return changes.iterator();
+        }
+        return new ChangeLogFileIterator();
     }
 
     @Override
     public boolean isEmptySet() {
-        return changes.isEmpty();
+        if (changelogFile == null) {
+            return changes.isEmpty();
+        }
+        ChangeLogFileIterator it = new ChangeLogFileIterator();
+        try {
+            return !it.hasNext();
+        } finally {
+            it.close();
+        }
     }
 
     public boolean addEntry(VaultSCMChangeLogSetEntry e) {
         return changes.add(e);
     }
-    private Collection<VaultSCMChangeLogSetEntry> changes;
+
+    synchronized void setTruncatedReasons(List<String> truncatedReasons) {
+        this.truncatedReasons = truncatedReasons;
+    }
+
+    /**
+     * @return why changes were left out of the changelog, empty if none were.
+     */
+    public List<String> getTruncatedReasons() {
+        synchronized (this) {
+            if (truncatedReasons != null) {
+                return truncatedReasons;
+            }
+        }
+        //the reasons follow the entries, so the whole file is read once unless an iteration already did
+        try {
+            VaultSCMChangeLogReader reader = new VaultSCMChangeLogReader(this, changelogFile);
+            try {
+                while (reader.next() != null) {
+                    //skip to the end
+                }
+                setTruncatedReasons(reader.getTruncatedReasons());
+                return reader.getTruncatedReasons();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to read " + changelogFile, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Resolves an author ID, looking each distinct author up only once per set.
+     */
+    synchronized User getUser(String userName) {
+        User user = users.get(userName);
+        if (user == null) {
+            user = userName == null || userName.isEmpty() ? null : User.get(userName);
+            if (user == null) {
+                user = User.getUnknown();
+            }
+            users.put(userName, user);
+        }
+        return user;
+    }
+
+    /**
+     * Returns one shared instance of equal author names and dates, which
+     * repeat across the entries of a changelog.
+     */
+    synchronized String intern(String value) {
+        String interned = strings.get(value);
+        if (interned == null) {
+            strings.put(value, value);
+            interned = value;
+        }
+        return interned;
+    }
+
+    /**
+     * @return the tree holding the affected paths of this set's entries.
+     */
+    VaultSCMPathTree getPathTree() {
+        return paths;
+    }
+
+    private final Collection<VaultSCMChangeLogSetEntry> changes;
+    private final File changelogFile;
+    private final VaultSCMPathTree paths = new VaultSCMPathTree();
+    /**
+     * Null for a set read from its file until the file has been read to the end.
+     */
+    private List<String> truncatedReasons = Collections.emptyList();
+
+    /**
+     * Authors resolved so far, most recently used last.
+     */
+    private final Map<String, User> users = new LinkedHashMap<String, User>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, User> eldest) {
+            return size() > MAX_CACHED_USERS;
+        }
+    };
+
+    private final Map<String, String> strings = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_INTERNED_STRINGS;
+        }
+    };
+
+    private static final int MAX_CACHED_USERS = 1000;
+    private static final int MAX_INTERNED_STRINGS = 10000;
+
+    /**
+     * Streams the entries of a compressed changelog, closing the file once
+     * the last entry has been read.
+     */
+    private final class ChangeLogFileIterator implements Iterator<VaultSCMChangeLogSetEntry> {
+
+        private VaultSCMChangeLogReader reader;
+        private VaultSCMChangeLogSetEntry next;
+
+        ChangeLogFileIterator() {
+            try {
+                reader = new VaultSCMChangeLogReader(VaultSCMChangeLogSet.this, changelogFile);
+                advance();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to read " + changelogFile, e);
+                close();
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public VaultSCMChangeLogSetEntry next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            VaultSCMChangeLogSetEntry current = next;
+            try {
+                advance();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to read " + changelogFile, e);
+                close();
+            }
+            return current;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void advance() throws IOException {
+            next = reader.next();
+            if (next == null) {
+                //the reasons follow the last entry
+                setTruncatedReasons(reader.getTruncatedReasons());
+                close();
+            }
+        }
+
+        void close() {
+            next = null;
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    LOG.log(Level.FINE, "Failed to close " + changelogFile, e);
+                }
+                reader = null;
+            }
+        }
+    }
 
     public static class VaultSCMChangeLogSetEntry extends ChangeLogSet.Entry {
 
         private String comment;
         private String version;
         private String date;
-        private User user;
+        private String userName;
+        private List<VaultSCMAffectedFile> files;
 
         @SuppressWarnings("rawtypes")
         public VaultSCMChangeLogSetEntry(String comment, String version, String date, ChangeLogSet parent, String userName) {
+            this(comment, version, date, parent, userName, Collections.<VaultSCMAffectedFile>emptyList());
+        }
+
+        @SuppressWarnings("rawtypes")
+        public VaultSCMChangeLogSetEntry(String comment, String version, String date, ChangeLogSet parent, String userName,
+                List<VaultSCMAffectedFile> files) {
             this.comment = comment;
             this.version = version;
             this.date = date;
-            this.user = User.get(userName);
+            this.userName = userName;
+            this.files = files;
             setParent(parent);
         }
 
@@ -76,22 +275,54 @@ public final class VaultSCMChangeLogSet extends ChangeLogSet<VaultSCMChangeLogSe
 
         @Override
         public Collection<String> getAffectedPaths() {
-            Collection<String> col = new ArrayList<String>();
-            col.add("user defined path");
+            Collection<String> col = new ArrayList<String>(getAffectedFiles().size());
+            for (VaultSCMAffectedFile file : getAffectedFiles()) {
+                col.add(file.getPath());
+            }
             return col;
         }
 
+        @Override
+        public Collection<VaultSCMAffectedFile> getAffectedFiles() {
+            if (files == null) {
+                return Collections.emptyList();
+            }
+            return files;
+        }
+
+        /**
+         * @return the Vault user name of the author, as recorded in the changelog.
+         */
+        public String getUserName() {
+            return userName;
+        }
+
         @Override
         public User getAuthor() {
-            if (user == null) {
+            //resolved on demand, parsing a changelog should not touch the user database
+            if (getParent() instanceof VaultSCMChangeLogSet) {
+                return ((VaultSCMChangeLogSet) getParent()).getUser(userName);
+            }
+            if (userName == null || userName.isEmpty()) {
                 return User.getUnknown();
             }
-            return user;
+            User user = User.get(userName);
+            return user == null ? User.getUnknown() : user;
         }
 
+        /**
+         * @return the edit type shared by all affected files, or EDIT if they differ.
+         */
         @Exported
         public EditType getEditType() {
-            return EditType.EDIT;
+            EditType type = null;
+            for (VaultSCMAffectedFile file : getAffectedFiles()) {
+                if (type != null && type != file.getEditType()) {
+                    return EditType.EDIT;
+                }
+                type = file.getEditType();
+            }
+            return type == null ? EditType.EDIT : type;
         }
 
         @Exported
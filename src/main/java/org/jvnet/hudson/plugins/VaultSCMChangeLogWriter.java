@@ -0,0 +1,111 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes a changelog file in the layout of VERSIONHISTORY output, with the
+ * files touched by each folder version as child elements of its item:
+ *
+ * <pre>
+ * &lt;vault&gt;&lt;history&gt;
+ *   &lt;item version="12" txid="345" date="..." user="..." comment="..."&gt;
+ *     &lt;file action="modify" name="$/folder/file.txt"/&gt;
+ *   &lt;/item&gt;
+ *   &lt;truncated reason="..."/&gt;
+ * &lt;/history&gt;&lt;/vault&gt;
+ * </pre>
+ *
+ * A <code>truncated</code> element is written for each reason changes were
+ * left out of the changelog, after the items as it is only known once they
+ * have been written.
+ *
+ * @author Stuart Whelan
+ */
+final class VaultSCMChangeLogWriter implements Closeable {
+
+    private final OutputStream out;
+    private final XMLStreamWriter writer;
+    private final Set<String> truncated = new LinkedHashSet<String>();
+    private int itemCount;
+
+    /**
+     * @param compress whether to gzip the file, see {@link VaultSCMChangeLogReader#isCompressed(File)}.
+     */
+    VaultSCMChangeLogWriter(File changelogFile, boolean compress) throws IOException {
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(changelogFile));
+        try {
+            this.out = compress ? new GZIPOutputStream(os) : os;
+            this.writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement("vault");
+            writer.writeStartElement("history");
+        } catch (XMLStreamException e) {
+            os.close();
+            throw new IOException("Failed to write " + changelogFile, e);
+        }
+    }
+
+    void writeItem(VaultSCMHistoryItem item, List<VaultSCMAffectedFile> files) throws IOException {
+        try {
+            writer.writeStartElement("item");
+            writer.writeAttribute("version", String.valueOf(item.getVersion()));
+            writer.writeAttribute("txid", item.getTxid());
+            writer.writeAttribute("date", item.getDate());
+            writer.writeAttribute("user", item.getUser());
+            writer.writeAttribute("comment", item.getComment());
+            if (files != null) {
+                for (VaultSCMAffectedFile file : files) {
+                    writer.writeEmptyElement("file");
+                    writer.writeAttribute("action", file.getAction());
+                    writer.writeAttribute("name", file.getPath());
+                }
+            }
+            writer.writeEndElement();
+            itemCount++;
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to write changelog", e);
+        }
+    }
+
+    /**
+     * @return the number of items written so far.
+     */
+    int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * Records that changes were left out of the changelog. Each distinct
+     * reason is written once.
+     */
+    void markTruncated(String reason) {
+        truncated.add(reason);
+    }
+
+    public void close() throws IOException {
+        try {
+            for (String reason : truncated) {
+                writer.writeEmptyElement("truncated");
+                writer.writeAttribute("reason", reason);
+            }
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to write changelog", e);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package org.jvnet.hudson.plugins;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import hudson.Extension;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jenkins.metrics.api.MetricProvider;
+import jenkins.metrics.api.Metrics;
+
+/**
+ * Records every Vault client command: how long it waited for a slot from
+ * the {@link VaultSCMConcurrencyLimiter}, how long it ran, its exit code and
+ * how much output it produced. The numbers are kept per command, server and
+ * repository in the metrics plugin's registry, under
+ * <code>vault.scm.&lt;command&gt;.&lt;server&gt;.&lt;repository&gt;</code>, and
+ * shown on the {@link VaultSCMManagementLink} page.
+ *
+ * @author Stuart Whelan
+ */
+public final class VaultSCMCommandStats {
+
+    private final ConcurrentMap<String, Command> commands = new ConcurrentHashMap<String, Command>();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * Starts recording a command, before it waits for a slot.
+     *
+     * @param command the client command, e.g. GET or VERSIONHISTORY.
+     */
+    public Execution start(String command, String serverName, String repositoryName, VaultSCMConcurrencyLimiter.CommandType type) {
+        String key = command + "|" + serverName + "|" + repositoryName;
+        Command stats = commands.get(key);
+        if (stats == null) {
+            Command created = new Command(command, serverName, repositoryName);
+            stats = commands.putIfAbsent(key, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return new Execution(stats, type == VaultSCMConcurrencyLimiter.CommandType.HISTORY);
+    }
+
+    /**
+     * @return the commands run so far, ordered by command, server and repository.
+     */
+    public List<Command> getCommands() {
+        return Collections.unmodifiableList(new ArrayList<Command>(new TreeMap<String, Command>(commands).values()));
+    }
+
+    /**
+     * @return the number of commands waiting for a slot.
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * @return the number of commands running.
+     */
+    public int getRunning() {
+        return running.get();
+    }
+
+    private static String metricName(String... parts) {
+        String[] names = new String[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            names[i] = String.valueOf(parts[i]).replaceAll("[^A-Za-z0-9_-]", "_");
+        }
+        return MetricRegistry.name("vault.scm", names);
+    }
+
+    /**
+     * The statistics of one command against one server and repository.
+     */
+    public static final class Command {
+
+        private final String command;
+        private final String serverName;
+        private final String repositoryName;
+        private final Timer wait;
+        private final Timer execution;
+        private final Histogram bytes;
+        private final Histogram items;
+        private final Meter failures;
+        private volatile int lastExitCode;
+
+        Command(String command, String serverName, String repositoryName) {
+            this.command = command;
+            this.serverName = serverName;
+            this.repositoryName = repositoryName;
+            MetricRegistry registry = Metrics.metricRegistry();
+            this.wait = registry.timer(metricName(command, serverName, repositoryName, "wait"));
+            this.execution = registry.timer(metricName(command, serverName, repositoryName, "execution"));
+            this.bytes = registry.histogram(metricName(command, serverName, repositoryName, "bytes"));
+            this.items = registry.histogram(metricName(command, serverName, repositoryName, "items"));
+            this.failures = registry.meter(metricName(command, serverName, repositoryName, "failures"));
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public String getServerName() {
+            return serverName;
+        }
+
+        public String getRepositoryName() {
+            return repositoryName;
+        }
+
+        public long getCount() {
+            return wait.getCount();
+        }
+
+        public long getFailures() {
+            return failures.getCount();
+        }
+
+        public int getLastExitCode() {
+            return lastExitCode;
+        }
+
+        public Timer getWait() {
+            return wait;
+        }
+
+        public Timer getExecution() {
+            return execution;
+        }
+
+        public Histogram getBytes() {
+            return bytes;
+        }
+
+        public Histogram getItems() {
+            return items;
+        }
+
+        public long getMeanWaitMillis() {
+            return millis(wait.getSnapshot().getMean());
+        }
+
+        public long getWait95thPercentileMillis() {
+            return millis(wait.getSnapshot().get95thPercentile());
+        }
+
+        public long getMeanExecutionMillis() {
+            return millis(execution.getSnapshot().getMean());
+        }
+
+        public long getExecution95thPercentileMillis() {
+            return millis(execution.getSnapshot().get95thPercentile());
+        }
+
+        public long getMeanBytes() {
+            return Math.round(bytes.getSnapshot().getMean());
+        }
+
+        public long getMeanItems() {
+            return Math.round(items.getSnapshot().getMean());
+        }
+
+        private static long millis(double nanos) {
+            return Math.round(nanos / TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * One run of a command. {@link #finished(int)} must be called once it is
+     * over, whether or not it got a slot.
+     */
+    public final class Execution {
+
+        private final Command stats;
+        private final boolean countItems;
+        private final long started = System.nanoTime();
+        private long acquired;
+        private Semaphore permit;
+        private OutputStreamCounter counter;
+
+        Execution(Command stats, boolean countItems) {
+            this.stats = stats;
+            this.countItems = countItems;
+            waiting.incrementAndGet();
+        }
+
+        /**
+         * Records the end of the wait for a slot.
+         *
+         * @param permit the slot, released when the command finishes.
+         */
+        public void acquired(Semaphore permit) {
+            this.permit = permit;
+            acquired = System.nanoTime();
+            waiting.decrementAndGet();
+            running.incrementAndGet();
+            stats.wait.update(acquired - started, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return a stream that passes output on to <code>out</code>, counting it on the way.
+         */
+        public OutputStream output(OutputStream out) {
+            counter = new OutputStreamCounter(out, countItems ? new VaultSCMItemCounter(Integer.MAX_VALUE) : null);
+            return counter;
+        }
+
+        /**
+         * Records the end of the command and releases its slot.
+         *
+         * @param exitCode the exit code, or -1 if the command did not run or was interrupted.
+         */
+        public void finished(int exitCode) {
+            long now = System.nanoTime();
+            if (permit == null) {
+                waiting.decrementAndGet();
+                stats.wait.update(now - started, TimeUnit.NANOSECONDS);
+            } else {
+                running.decrementAndGet();
+                permit.release();
+                permit = null;
+                stats.execution.update(now - acquired, TimeUnit.NANOSECONDS);
+            }
+            if (counter != null) {
+                stats.bytes.update(counter.bytes);
+                if (counter.items != null) {
+                    stats.items.update(counter.items.getCount());
+                }
+            }
+            if (exitCode != 0) {
+                stats.failures.mark();
+            }
+            stats.lastExitCode = exitCode;
+        }
+    }
+
+    /**
+     * Counts the bytes, and optionally the history items, written through it.
+     */
+    private static final class OutputStreamCounter extends OutputStream {
+
+        private final OutputStream out;
+        private final VaultSCMItemCounter items;
+        private volatile long bytes;
+
+        OutputStreamCounter(OutputStream out, VaultSCMItemCounter items) {
+            this.out = out;
+            this.items = items;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (items != null) {
+                items.write(b);
+            }
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (items != null) {
+                items.write(b, off, len);
+            }
+            bytes += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Publishes the number of waiting and running commands as gauges.
+     */
+    @Extension
+    public static final class MetricProviderImpl extends MetricProvider {
+
+        @Override
+        public MetricSet getMetricSet() {
+            final VaultSCMCommandStats stats = VaultSCM.DESCRIPTOR.getCommandStats();
+            return new MetricSet() {
+                public Map<String, Metric> getMetrics() {
+                    Map<String, Metric> metrics = new HashMap<String, Metric>();
+                    metrics.put(metricName("commands", "waiting"), new Gauge<Integer>() {
+                        public Integer getValue() {
+                            return stats.getWaiting();
+                        }
+                    });
+                    metrics.put(metricName("commands", "running"), new Gauge<Integer>() {
+                        public Integer getValue() {
+                            return stats.getRunning();
+                        }
+                    });
+                    return metrics;
+                }
+            };
+        }
+    }
+}
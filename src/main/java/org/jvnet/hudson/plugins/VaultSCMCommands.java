@@ -0,0 +1,79 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.util.ArgumentListBuilder;
+import hudson.util.Secret;
+
+/**
+ * Builds Vault client command lines. Kept apart from {@link VaultSCM} so that
+ * it can be used without a running Jenkins.
+ *
+ * @author Stuart Whelan
+ */
+final class VaultSCMCommands {
+
+    private VaultSCMCommands() {
+    }
+
+    /**
+     * Starts a command line with the connection options. In some cases
+     * username, host and password can be empty e.g. if rememberlogin is used
+     * to store login data.
+     */
+    static ArgumentListBuilder create(String pathToVault, String command, String serverName, String userName,
+            Secret password, String repositoryName, boolean sslEnabled) {
+        ArgumentListBuilder argBuildr = new ArgumentListBuilder();
+        argBuildr.add(pathToVault);
+        argBuildr.add(command);
+
+        if (serverName != null && !serverName.isEmpty()) {
+            argBuildr.add("-host", serverName);
+        }
+
+        if (userName != null && !userName.isEmpty()) {
+            argBuildr.add("-user", userName);
+        }
+
+        if (!Secret.toString(password).isEmpty()) {
+            argBuildr.add("-password");
+            argBuildr.add(Secret.toString(password), true);
+        }
+
+        if (repositoryName != null && !repositoryName.isEmpty()) {
+            argBuildr.add("-repository", repositoryName);
+        }
+
+        if (sslEnabled) {
+            argBuildr.add("-ssl");
+        }
+
+        return argBuildr;
+    }
+
+    /**
+     * Adds the options of a GET.
+     *
+     * @param target the folder to GET into, or null to use the existing working folder.
+     */
+    static void addGetOptions(ArgumentListBuilder argBuildr, boolean verboseEnabled, boolean makeWritableEnabled,
+            String merge, String fileTime, boolean useNonWorkingFolder, String target) {
+        if (verboseEnabled) {
+            argBuildr.add("-verbose");
+        }
+
+        if (makeWritableEnabled) {
+            argBuildr.add("-makewritable");
+        }
+
+        argBuildr.add("-merge", merge);
+
+        argBuildr.add("-setfiletime", fileTime);
+
+        if (target != null) {
+            if (useNonWorkingFolder) {
+                argBuildr.add("-nonworkingfolder", target);
+            } else {
+                argBuildr.add("-workingfolder", target);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.jvnet.hudson.plugins;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many Vault client commands may run at the same time against a
+ * single server and repository. GETs and read-only history commands are
+ * limited separately, and waiters are served in arrival order.
+ *
+ * @author Stuart Whelan
+ */
+public final class VaultSCMConcurrencyLimiter {
+
+    /**
+     * The kinds of command that are limited independently of each other.
+     */
+    public enum CommandType {
+        GET, HISTORY
+    }
+
+    private final ConcurrentMap<String, Semaphore> semaphores = new ConcurrentHashMap<String, Semaphore>();
+
+    /**
+     * Waits for a free slot for the given server and repository.
+     *
+     * @return the semaphore holding the slot, which the caller must release
+     *         in a finally block, or null if no slot became free in time.
+     */
+    public Semaphore acquire(String serverName, String repositoryName, CommandType type, int permits,
+            long timeout, TimeUnit unit) throws InterruptedException {
+        Semaphore sem = getSemaphore(serverName, repositoryName, type, permits);
+        if (!sem.tryAcquire(timeout, unit)) {
+            return null;
+        }
+        return sem;
+    }
+
+    /**
+     * Forgets all semaphores so that changed limits take effect. Commands
+     * already running release their slot to the semaphore they acquired.
+     */
+    public void reset() {
+        semaphores.clear();
+    }
+
+    private Semaphore getSemaphore(String serverName, String repositoryName, CommandType type, int permits) {
+        String key = type + "|" + serverName + "|" + repositoryName;
+        Semaphore sem = semaphores.get(key);
+        if (sem == null) {
+            Semaphore created = new Semaphore(Math.max(1, permits), true);
+            sem = semaphores.putIfAbsent(key, created);
+            if (sem == null) {
+                sem = created;
+            }
+        }
+        return sem;
+    }
+}
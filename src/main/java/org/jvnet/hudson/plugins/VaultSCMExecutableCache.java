@@ -0,0 +1,75 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers where the Vault client was found on each node, so that the
+ * location is not resolved and checked over the remoting channel for every
+ * command. Entries for a node are dropped when it connects or disconnects,
+ * and all entries are dropped when the installations are reconfigured.
+ *
+ * @author Stuart Whelan
+ */
+public final class VaultSCMExecutableCache {
+
+    private static final ConcurrentMap<String, String> PATHS = new ConcurrentHashMap<String, String>();
+
+    private VaultSCMExecutableCache() {
+    }
+
+    /**
+     * @param installation the installation name, or null when the default locations are probed.
+     * @param nodeName the node name, empty for the controller.
+     * @return the resolved client location, or null if it is not known.
+     */
+    public static String get(String installation, String nodeName) {
+        return PATHS.get(key(installation, nodeName));
+    }
+
+    public static void put(String installation, String nodeName, String pathToVault) {
+        PATHS.put(key(installation, nodeName), pathToVault);
+    }
+
+    public static void invalidate(String nodeName) {
+        String prefix = nodeName + "|";
+        for (Iterator<String> it = PATHS.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    public static void clear() {
+        PATHS.clear();
+    }
+
+    private static String key(String installation, String nodeName) {
+        return nodeName + "|" + (installation == null ? "" : installation);
+    }
+
+    /**
+     * Forgets a node's locations whenever its agent connects or disconnects,
+     * as the client may have been installed, moved or removed meanwhile.
+     */
+    @Extension
+    public static final class Invalidator extends ComputerListener {
+
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            invalidate(c.getName());
+        }
+
+        @Override
+        public void onOffline(Computer c, OfflineCause cause) {
+            invalidate(c.getName());
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.TaskListener;
+import hudson.scm.SCM;
+import hudson.util.LogTaskListener;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.scm.api.SCMFile;
+import jenkins.scm.api.SCMFileSystem;
+import jenkins.scm.api.SCMRevision;
+import jenkins.scm.api.SCMSource;
+
+/**
+ * Reads single files of a job's paths without a checkout, e.g. for Pipeline
+ * to load its script. Files are laid out as in the workspace, with each
+ * additional path in its folder. The client runs on the controller: each
+ * file read is fetched on its own with a GET and kept on the controller
+ * under the version of its path, so later reads at the same version do not
+ * contact the server.
+ * <p>
+ * A GET always fetches the latest version of a file, so the version of the
+ * path is looked up again after the GET. The file is only kept under a
+ * version when no check-in came between the lookups around its GET.
+ *
+ * @author Stuart Whelan
+ */
+public final class VaultSCMFileSystem extends SCMFileSystem {
+
+    private static final Logger LOG = Logger.getLogger(VaultSCMFileSystem.class.getName());
+
+    /**
+     * Number of GETs of a file before giving up on a path that keeps changing.
+     */
+    private static final int FETCH_ATTEMPTS = 3;
+
+    private final VaultSCM scm;
+    private final Launcher launcher;
+    private final FilePath cacheRoot;
+    private final TaskListener listener;
+    private final Map<String, VaultSCMFolderListing> listings = new HashMap<String, VaultSCMFolderListing>();
+
+    /**
+     * The last known version of each of the job's paths.
+     */
+    private final Map<String, Long> versions = new HashMap<String, Long>();
+
+    /**
+     * @param version the version of the job's main path.
+     */
+    VaultSCMFileSystem(VaultSCM scm, long version, Launcher launcher, FilePath cacheRoot, TaskListener listener) {
+        super(null);
+        this.scm = scm;
+        this.launcher = launcher;
+        this.cacheRoot = cacheRoot;
+        this.listener = listener;
+        versions.put(scm.getPath(), Long.valueOf(version));
+    }
+
+    /**
+     * Not known without a history query, so always 0.
+     */
+    @Override
+    public long lastModified() {
+        return 0;
+    }
+
+    @Override
+    public SCMFile getRoot() {
+        return new FileImpl();
+    }
+
+    /**
+     * @return the listing of the repository folder, or null if it does not exist.
+     */
+    private synchronized VaultSCMFolderListing list(String folder) throws IOException, InterruptedException {
+        if (!listings.containsKey(folder)) {
+            listings.put(folder, scm.listFolder(launcher, cacheRoot, listener, folder));
+        }
+        return listings.get(folder);
+    }
+
+    /**
+     * @return the last known version of the path, looking it up if there is none.
+     */
+    private synchronized long getVersion(String path) throws IOException, InterruptedException {
+        Long version = versions.get(path);
+        if (version == null) {
+            version = scm.getLatestVersion(launcher, cacheRoot, listener, path);
+            if (version == null) {
+                throw new IOException("Failed to determine the version of " + path + ".");
+            }
+            versions.put(path, version);
+        }
+        return version.longValue();
+    }
+
+    /**
+     * Returns the file as of the current version of its path, fetching it
+     * unless it is cached. Older cached versions of the file are deleted.
+     *
+     * @param path the job's path the file is in.
+     */
+    private File fetch(String path, String file) throws IOException, InterruptedException {
+        String name = file.substring(file.lastIndexOf('/') + 1);
+        FilePath fileRoot = cacheRoot.child(Util.getDigestOf((scm.getServerName() + "|" + scm.getRepositoryName() + "|" + file).toLowerCase(Locale.ENGLISH)));
+        long version = getVersion(path);
+        FilePath cached = fileRoot.child(String.valueOf(version)).child(name);
+        if (cached.exists()) {
+            return new File(cached.getRemote());
+        }
+
+        for (int attempt = 0; attempt < FETCH_ATTEMPTS; attempt++) {
+            //fetched to a folder of its own, so that readers never see a partial file
+            FilePath temp = fileRoot.child(version + "-" + Thread.currentThread().getId() + ".tmp");
+            temp.deleteRecursive();
+            temp.mkdirs();
+            try {
+                if (!scm.getFile(launcher, cacheRoot, listener, file, temp) || !temp.child(name).exists()) {
+                    throw new FileNotFoundException("Failed to get " + file + " from Vault.");
+                }
+                Long after = scm.getLatestVersion(launcher, cacheRoot, listener, path);
+                if (after == null) {
+                    throw new IOException("Failed to determine the version of " + path + ".");
+                }
+                synchronized (this) {
+                    versions.put(path, after);
+                }
+                if (after.longValue() != version) {
+                    //a check-in came before the GET, the file may be of either version
+                    LOG.log(Level.FINE, "{0} changed from version {1} to {2} while {3} was fetched",
+                            new Object[] {path, version, after, file});
+                    version = after.longValue();
+                    continue;
+                }
+
+                FilePath versionDir = fileRoot.child(String.valueOf(version));
+                for (FilePath older : fileRoot.listDirectories()) {
+                    if (!older.getName().endsWith(".tmp") && !older.getName().equals(versionDir.getName())) {
+                        try {
+                            older.deleteRecursive();
+                        } catch (IOException e) {
+                            LOG.log(Level.FINE, "Cannot delete " + older + " yet, it may still be read", e);
+                        }
+                    }
+                }
+                try {
+                    temp.renameTo(versionDir);
+                } catch (IOException e) {
+                    //another read cached the version first
+                    LOG.log(Level.FINE, "Cannot move " + temp + " to " + versionDir, e);
+                }
+                cached = versionDir.child(name);
+                if (!cached.exists()) {
+                    throw new FileNotFoundException("Failed to cache " + file + ".");
+                }
+                return new File(cached.getRemote());
+            } finally {
+                temp.deleteRecursive();
+            }
+        }
+        throw new IOException(path + " kept changing while " + file + " was fetched.");
+    }
+
+    /**
+     * @return the folder of the workspace the location is fetched into, with
+     *         forward slashes, empty for the workspace itself.
+     */
+    private static String getFolder(VaultSCMLocation location) {
+        String folder = location.getSubDirectory().replace('\\', '/');
+        while (folder.startsWith("./")) {
+            folder = folder.substring(2);
+        }
+        while (folder.endsWith("/")) {
+            folder = folder.substring(0, folder.length() - 1);
+        }
+        return folder;
+    }
+
+    /**
+     * @param relative a path relative to the workspace.
+     * @return the location whose folder holds the path, the innermost one if they are nested.
+     */
+    private VaultSCMLocation locate(String relative) {
+        VaultSCMLocation found = null;
+        int foundLength = -1;
+        for (VaultSCMLocation location : scm.getLocations()) {
+            String folder = getFolder(location);
+            if (folder.length() > foundLength
+                    && (folder.isEmpty() || relative.equals(folder) || relative.startsWith(folder + "/"))) {
+                found = location;
+                foundLength = folder.length();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param relative a folder relative to the workspace.
+     * @return the names of the folders directly in it that hold, or lead to, additional paths.
+     */
+    private List<String> getLocationFolders(String relative) {
+        List<String> names = new ArrayList<String>();
+        String prefix = relative.isEmpty() ? "" : relative + "/";
+        for (VaultSCMLocation location : scm.getAdditionalPaths()) {
+            String folder = getFolder(location);
+            if (folder.length() > prefix.length() && folder.startsWith(prefix)) {
+                String name = folder.substring(prefix.length());
+                if (name.indexOf('/') >= 0) {
+                    name = name.substring(0, name.indexOf('/'));
+                }
+                if (!names.contains(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * A file or folder of the workspace the job's paths are fetched into.
+     */
+    private final class FileImpl extends SCMFile {
+
+        FileImpl() {
+        }
+
+        FileImpl(FileImpl parent, String name) {
+            super(parent, name);
+        }
+
+        /**
+         * @return the job's path the file is fetched from.
+         */
+        private VaultSCMLocation getLocation() {
+            return isRoot() ? new VaultSCMLocation(scm.getPath(), null) : locate(getPath());
+        }
+
+        /**
+         * @return the repository path of the file.
+         */
+        private String getRepositoryPath() {
+            if (isRoot()) {
+                return scm.getPath();
+            }
+            String relative = getPath();
+            VaultSCMLocation location = locate(relative);
+            String folder = getFolder(location);
+            String rest = folder.isEmpty() ? relative : relative.substring(Math.min(relative.length(), folder.length() + 1));
+            return rest.isEmpty() ? location.getPath() : VaultSCM.getPathPrefix(location.getPath()) + rest;
+        }
+
+        @Override
+        protected SCMFile newChild(String name, boolean assumeIsDirectory) {
+            return new FileImpl(this, name);
+        }
+
+        @Override
+        public Iterable<SCMFile> children() throws IOException, InterruptedException {
+            List<SCMFile> children = new ArrayList<SCMFile>();
+            List<String> names = new ArrayList<String>();
+            VaultSCMFolderListing listing = list(getRepositoryPath());
+            if (listing != null) {
+                for (String folder : listing.getFolders()) {
+                    children.add(new FileImpl(this, folder));
+                    names.add(folder.toLowerCase(Locale.ENGLISH));
+                }
+                for (String file : listing.getFiles()) {
+                    children.add(new FileImpl(this, file));
+                    names.add(file.toLowerCase(Locale.ENGLISH));
+                }
+            }
+            for (String folder : getLocationFolders(isRoot() ? "" : getPath())) {
+                if (!names.contains(folder.toLowerCase(Locale.ENGLISH))) {
+                    children.add(new FileImpl(this, folder));
+                }
+            }
+            return children;
+        }
+
+        @Override
+        public long lastModified() {
+            return 0;
+        }
+
+        @Override
+        protected Type type() throws IOException, InterruptedException {
+            if (isRoot()) {
+                return Type.DIRECTORY;
+            }
+            String relative = getPath();
+            if (getLocationFolders(relative.indexOf('/') < 0 ? "" : relative.substring(0, relative.lastIndexOf('/')))
+                    .contains(getName())) {
+                return Type.DIRECTORY;
+            }
+            String repositoryPath = getRepositoryPath();
+            VaultSCMFolderListing listing = list(repositoryPath.substring(0, repositoryPath.lastIndexOf('/')));
+            if (listing != null) {
+                //Vault paths are not case sensitive
+                for (String folder : listing.getFolders()) {
+                    if (folder.equalsIgnoreCase(getName())) {
+                        return Type.DIRECTORY;
+                    }
+                }
+                for (String file : listing.getFiles()) {
+                    if (file.equalsIgnoreCase(getName())) {
+                        return Type.REGULAR_FILE;
+                    }
+                }
+            }
+            return Type.NONEXISTENT;
+        }
+
+        @Override
+        public InputStream content() throws IOException, InterruptedException {
+            if (isRoot()) {
+                throw new IOException(scm.getPath() + " is a folder.");
+            }
+            return new FileInputStream(fetch(getLocation().getPath(), getRepositoryPath()));
+        }
+    }
+
+    @Extension
+    public static final class BuilderImpl extends SCMFileSystem.Builder {
+
+        @Override
+        public boolean supports(SCM source) {
+            return source instanceof VaultSCM;
+        }
+
+        @Override
+        public boolean supports(SCMSource source) {
+            return false;
+        }
+
+        /**
+         * @return the file system, or null if the version of the path cannot
+         *         be determined on the controller, e.g. as the client is not
+         *         installed there, in which case Jenkins does a checkout.
+         */
+        @Override
+        public SCMFileSystem build(Item owner, SCM scm, SCMRevision rev) throws IOException, InterruptedException {
+            VaultSCM vault = (VaultSCM) scm;
+            TaskListener listener = new LogTaskListener(LOG, Level.FINE);
+            Jenkins jenkins = Jenkins.getInstance();
+            Launcher launcher = jenkins.createLauncher(listener);
+            FilePath cacheRoot = new FilePath(new File(jenkins.getRootDir(), "caches/vault-scm-files"));
+            cacheRoot.mkdirs();
+
+            Long version = vault.getLatestVersion(launcher, cacheRoot, listener, vault.getPath());
+            if (version == null) {
+                LOG.log(Level.FINE, "Cannot read {0} without a checkout, its version is unknown", vault.getPath());
+                return null;
+            }
+            return new VaultSCMFileSystem(vault, version.longValue(), launcher, cacheRoot, listener);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The direct children of a folder, as listed by LISTFOLDER -norecursive:
+ *
+ * <pre>
+ * &lt;vault&gt;
+ *   &lt;folder name="$/path" ...&gt;
+ *     &lt;folder name="$/path/sub" .../&gt;
+ *     &lt;file name="file.txt" .../&gt;
+ *   &lt;/folder&gt;
+ * &lt;/vault&gt;
+ * </pre>
+ *
+ * @author Stuart Whelan
+ */
+public final class VaultSCMFolderListing {
+
+    private final List<String> folders;
+    private final List<String> files;
+
+    private VaultSCMFolderListing(List<String> folders, List<String> files) {
+        this.folders = Collections.unmodifiableList(folders);
+        this.files = Collections.unmodifiableList(files);
+    }
+
+    /**
+     * @return the names of the subfolders, without their parent path.
+     */
+    public List<String> getFolders() {
+        return folders;
+    }
+
+    /**
+     * @return the names of the files, without their parent path.
+     */
+    public List<String> getFiles() {
+        return files;
+    }
+
+    public static VaultSCMFolderListing parse(InputStream in) throws IOException {
+        List<String> folders = new ArrayList<String>();
+        List<String> files = new ArrayList<String>();
+        try {
+            XMLStreamReader reader = VaultSCMChangeLogParser.newInputFactory().createXMLStreamReader(in);
+            try {
+                //the listed folder is the outermost folder element, its children are one level down
+                int folderDepth = 0;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String element = reader.getLocalName();
+                        if ("folder".equals(element)) {
+                            if (folderDepth == 1) {
+                                folders.add(getName(reader));
+                            }
+                            folderDepth++;
+                        } else if ("file".equals(element) && folderDepth == 1) {
+                            files.add(getName(reader));
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && "folder".equals(reader.getLocalName())) {
+                        folderDepth--;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to parse Vault folder listing", e);
+        }
+        return new VaultSCMFolderListing(folders, files);
+    }
+
+    private static String getName(XMLStreamReader reader) {
+        String name = VaultSCMChangeLogParser.attribute(reader, "name");
+        return name.substring(name.lastIndexOf('/') + 1);
+    }
+}
@@ -0,0 +1,136 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares the results of identical Vault history queries between jobs. A
+ * query that is already running is joined rather than started again, and a
+ * finished result is reused until it is older than the time to live.
+ *
+ * @author Stuart Whelan
+ */
+public final class VaultSCMHistoryCache<V> {
+
+    private final ConcurrentMap<String, CachedQuery<V>> queries = new ConcurrentHashMap<String, CachedQuery<V>>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Returns the result for the key, running the query in the calling thread
+     * only if no other thread is running it and no fresh result is cached.
+     * Failed queries are not cached.
+     */
+    public V get(String key, long ttlMillis, Callable<V> query) throws IOException, InterruptedException {
+        while (true) {
+            CachedQuery<V> cached = queries.get(key);
+            if (cached != null && cached.isExpired(System.currentTimeMillis(), ttlMillis)) {
+                queries.remove(key, cached);
+                cached = null;
+            }
+            if (cached == null) {
+                CachedQuery<V> created = new CachedQuery<V>(query);
+                if (queries.putIfAbsent(key, created) != null) {
+                    continue;
+                }
+                misses.incrementAndGet();
+                removeExpired(ttlMillis);
+                created.task.run();
+                boolean succeeded = false;
+                try {
+                    V result = created.await();
+                    succeeded = true;
+                    return result;
+                } finally {
+                    if (!succeeded) {
+                        queries.remove(key, created);
+                    }
+                }
+            }
+            hits.incrementAndGet();
+            return cached.await();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Drops every cached result. Queries already running are left to finish.
+     */
+    public void clear() {
+        queries.clear();
+    }
+
+    /**
+     * Drops the cached results whose keys start with the prefix, so the next
+     * request runs the query again. Queries already running are left to finish.
+     */
+    public void invalidate(String keyPrefix) {
+        for (Iterator<String> it = queries.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(keyPrefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    private void removeExpired(long ttlMillis) {
+        long now = System.currentTimeMillis();
+        for (Iterator<CachedQuery<V>> it = queries.values().iterator(); it.hasNext();) {
+            if (it.next().isExpired(now, ttlMillis)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static final class CachedQuery<V> {
+
+        private final FutureTask<V> task;
+        private volatile long completedAt;
+
+        CachedQuery(final Callable<V> query) {
+            this.task = new FutureTask<V>(new Callable<V>() {
+                public V call() throws Exception {
+                    try {
+                        return query.call();
+                    } finally {
+                        completedAt = System.currentTimeMillis();
+                    }
+                }
+            });
+        }
+
+        boolean isExpired(long now, long ttlMillis) {
+            return completedAt != 0 && now - completedAt >= ttlMillis;
+        }
+
+        V await() throws IOException, InterruptedException {
+            try {
+                return task.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof InterruptedException) {
+                    throw (InterruptedException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+}
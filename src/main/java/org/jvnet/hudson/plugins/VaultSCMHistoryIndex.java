@@ -0,0 +1,468 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.Util;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The history of one server, repository and path kept on the controller, so
+ * that the versions between two builds are read from disk rather than asked
+ * of the server again. The index covers the folder versions after its base
+ * up to its latest version, each with the file actions of its transaction,
+ * and is only ever extended from the latest version onwards.
+ * <p>
+ * The file is a list of tab separated records, appended to and closed by an
+ * update record for each batch:
+ *
+ * <pre>
+ * B  base
+ * V  version  txid  date  user  comment
+ * F  type  name
+ * U  latest  updated
+ * </pre>
+ *
+ * Records after the last update record are from an append that did not
+ * finish and are dropped. A file that cannot be read is deleted, and the
+ * index is built again from the next update.
+ *
+ * @author Stuart Whelan
+ */
+final class VaultSCMHistoryIndex {
+
+    private static final Logger LOG = Logger.getLogger(VaultSCMHistoryIndex.class.getName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentMap<String, VaultSCMHistoryIndex> INDEXES = new ConcurrentHashMap<String, VaultSCMHistoryIndex>();
+
+    /**
+     * Held while the index is brought up to date, so that one job queries
+     * the server and the others wait for its result, while reads go on.
+     */
+    final Object updating = new Object();
+
+    private final File file;
+    private boolean loaded;
+    private long base = -1;
+    private long latest = -1;
+    private long updated;
+    /**
+     * The versions in the file, in ascending order.
+     */
+    private final List<Long> versions = new ArrayList<Long>();
+
+    private VaultSCMHistoryIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param key identifies the server, repository and path. Vault paths are
+     *        not case sensitive, so neither is the key.
+     */
+    static VaultSCMHistoryIndex get(File root, String key) {
+        String name = Util.getDigestOf(key.toLowerCase(Locale.ENGLISH));
+        VaultSCMHistoryIndex index = INDEXES.get(name);
+        if (index == null) {
+            VaultSCMHistoryIndex created = new VaultSCMHistoryIndex(new File(root, name + ".txt"));
+            index = INDEXES.putIfAbsent(name, created);
+            if (index == null) {
+                index = created;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Receives the versions read from the index.
+     */
+    interface Handler {
+        /**
+         * @param actions the file actions of the version's transaction, empty if none were found.
+         */
+        void version(VaultSCMHistoryItem version, List<VaultSCMHistoryItem> actions) throws IOException;
+    }
+
+    /**
+     * @return the version the index starts after, or -1 if there is no index.
+     */
+    synchronized long getBase() {
+        load();
+        return base;
+    }
+
+    /**
+     * @return the latest version in the index, or -1 if there is no index.
+     */
+    synchronized long getLatestVersion() {
+        load();
+        return latest;
+    }
+
+    /**
+     * @return when the server was queried for the latest update, in controller time.
+     */
+    synchronized long getUpdated() {
+        load();
+        return updated;
+    }
+
+    /**
+     * @return whether the index holds every version after the first and up to the second.
+     */
+    synchronized boolean covers(long after, long upTo) {
+        load();
+        return base >= 0 && after >= base && upTo <= latest;
+    }
+
+    /**
+     * Adds the versions after the latest one to the index, starting a new
+     * index after the given base if there is none, and then drops the oldest
+     * versions beyond the limit.
+     *
+     * @param start the base of a new index.
+     * @param newVersions the folder versions, in any order. Versions the index already holds are skipped.
+     * @param actionsByTxid the file actions of the versions' transactions.
+     * @param queried when the server was queried, in controller time.
+     */
+    synchronized void append(long start, List<VaultSCMHistoryItem> newVersions,
+            Map<String, List<VaultSCMHistoryItem>> actionsByTxid, long queried, int maxVersions) throws IOException {
+        load();
+        List<VaultSCMHistoryItem> added = new ArrayList<VaultSCMHistoryItem>();
+        long from = base < 0 ? start : latest;
+        for (VaultSCMHistoryItem version : newVersions) {
+            if (version.getVersion() > from) {
+                added.add(version);
+            }
+        }
+        Collections.sort(added, new Comparator<VaultSCMHistoryItem>() {
+            public int compare(VaultSCMHistoryItem a, VaultSCMHistoryItem b) {
+                return Long.compare(a.getVersion(), b.getVersion());
+            }
+        });
+
+        file.getParentFile().mkdirs();
+        boolean created = base < 0;
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, !created), UTF8));
+        long newLatest = from;
+        try {
+            if (created) {
+                writeRecord(out, "B", String.valueOf(start));
+            }
+            for (VaultSCMHistoryItem version : added) {
+                writeRecord(out, "V", String.valueOf(version.getVersion()), version.getTxid(), version.getDate(),
+                        version.getUser(), version.getComment());
+                List<VaultSCMHistoryItem> actions = actionsByTxid.get(version.getTxid());
+                if (actions != null && !version.getTxid().isEmpty()) {
+                    for (VaultSCMHistoryItem action : actions) {
+                        writeRecord(out, "F", String.valueOf(action.getType()), action.getName());
+                    }
+                }
+                newLatest = version.getVersion();
+            }
+            writeRecord(out, "U", String.valueOf(newLatest), String.valueOf(queried));
+        } finally {
+            out.close();
+        }
+
+        if (created) {
+            base = start;
+        }
+        latest = newLatest;
+        updated = queried;
+        for (VaultSCMHistoryItem version : added) {
+            versions.add(Long.valueOf(version.getVersion()));
+        }
+
+        //rewriting is left until well past the limit, so that it is not done at every append
+        if (maxVersions > 0 && versions.size() > maxVersions + maxVersions / 4) {
+            rewrite(versions.get(versions.size() - maxVersions - 1).longValue());
+        }
+    }
+
+    /**
+     * Streams the versions after the first and up to the second to the
+     * handler, in ascending order.
+     *
+     * @return whether the index covered the range and could be read. An
+     *         index that cannot be read is deleted.
+     */
+    synchronized boolean read(long after, long upTo, Handler handler) throws IOException {
+        if (!covers(after, upTo)) {
+            return false;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            VaultSCMHistoryItem version = null;
+            List<VaultSCMHistoryItem> actions = new ArrayList<VaultSCMHistoryItem>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] record = parseRecord(line);
+                if ("F".equals(record[0])) {
+                    if (version != null) {
+                        actions.add(new VaultSCMHistoryItem(0, version.getTxid(), "", "", "", record[2], (int) parseNumber(record[1])));
+                    }
+                    continue;
+                }
+                if (version != null) {
+                    handler.version(version, actions);
+                    version = null;
+                    actions = new ArrayList<VaultSCMHistoryItem>();
+                }
+                if ("V".equals(record[0])) {
+                    long number = parseNumber(record[1]);
+                    if (number > upTo) {
+                        break;
+                    }
+                    if (number > after) {
+                        version = new VaultSCMHistoryItem(number, record[2], record[3], record[4], record[5], "", 0);
+                    }
+                }
+            }
+            if (version != null) {
+                handler.version(version, actions);
+            }
+            return true;
+        } catch (CorruptIndexException e) {
+            discard(e);
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the state of the index from the file, once. Drops records of
+     * an append that did not finish, and the whole file if it is corrupt.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            long fileBase = -1;
+            long committedLatest = -1;
+            long committedUpdated = 0;
+            int committedCount = 0;
+            List<Long> fileVersions = new ArrayList<Long>();
+            boolean pending = false;
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] record = parseRecord(line);
+                    String type = record[0];
+                    if (fileBase < 0) {
+                        if (!"B".equals(type) || record.length != 2) {
+                            throw new CorruptIndexException("The index does not start with its base");
+                        }
+                        fileBase = parseNumber(record[1]);
+                        pending = true;
+                    } else if ("V".equals(type) && record.length == 6) {
+                        long number = parseNumber(record[1]);
+                        long previous = fileVersions.isEmpty() ? fileBase : fileVersions.get(fileVersions.size() - 1).longValue();
+                        if (number <= previous) {
+                            throw new CorruptIndexException("Version " + number + " is out of order");
+                        }
+                        fileVersions.add(Long.valueOf(number));
+                        pending = true;
+                    } else if ("F".equals(type) && record.length == 3) {
+                        parseNumber(record[1]);
+                        pending = true;
+                    } else if ("U".equals(type) && record.length == 3) {
+                        committedLatest = parseNumber(record[1]);
+                        committedUpdated = parseNumber(record[2]);
+                        committedCount = fileVersions.size();
+                        pending = false;
+                    } else {
+                        throw new CorruptIndexException("Unknown record " + type);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            if (committedLatest < 0) {
+                throw new CorruptIndexException("The index was never completed");
+            }
+            base = fileBase;
+            latest = committedLatest;
+            updated = committedUpdated;
+            versions.addAll(fileVersions.subList(0, committedCount));
+            if (pending) {
+                LOG.log(Level.FINE, "Dropping an unfinished append to {0}", file);
+                rewrite(base);
+            }
+        } catch (IOException e) {
+            discard(e);
+        }
+    }
+
+    /**
+     * Writes the index again with the versions after the new base only,
+     * replacing the file in one step.
+     */
+    private void rewrite(final long newBase) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), UTF8));
+        boolean read;
+        try {
+            writeRecord(out, "B", String.valueOf(newBase));
+            read = read(newBase, latest, new Handler() {
+                public void version(VaultSCMHistoryItem version, List<VaultSCMHistoryItem> actions) throws IOException {
+                    writeRecord(out, "V", String.valueOf(version.getVersion()), version.getTxid(), version.getDate(),
+                            version.getUser(), version.getComment());
+                    for (VaultSCMHistoryItem action : actions) {
+                        writeRecord(out, "F", String.valueOf(action.getType()), action.getName());
+                    }
+                }
+            });
+            writeRecord(out, "U", String.valueOf(latest), String.valueOf(updated));
+        } finally {
+            out.close();
+        }
+        if (!read) {
+            temp.delete();
+            return;
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        base = newBase;
+        while (!versions.isEmpty() && versions.get(0).longValue() <= newBase) {
+            versions.remove(0);
+        }
+    }
+
+    /**
+     * Forgets the index after it could not be read.
+     */
+    private void discard(IOException e) {
+        LOG.log(Level.WARNING, "Deleting the corrupt Vault history index " + file + ", it will be built again", e);
+        if (file.exists() && !file.delete()) {
+            LOG.log(Level.WARNING, "Failed to delete {0}", file);
+        }
+        base = -1;
+        latest = -1;
+        updated = 0;
+        versions.clear();
+    }
+
+    private static void writeRecord(Writer out, String type, String... fields) throws IOException {
+        out.write(type);
+        for (String field : fields) {
+            out.write('\t');
+            out.write(escape(field));
+        }
+        out.write('\n');
+    }
+
+    private static String[] parseRecord(String line) throws CorruptIndexException {
+        String[] fields = line.split("\t", -1);
+        for (int i = 1; i < fields.length; i++) {
+            fields[i] = unescape(fields[i]);
+        }
+        if ("V".equals(fields[0]) && fields.length != 6 || "F".equals(fields[0]) && fields.length != 3) {
+            throw new CorruptIndexException("Malformed record " + fields[0]);
+        }
+        return fields;
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String unescape(String value) throws CorruptIndexException {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '\\') {
+                unescaped.append(c);
+                continue;
+            }
+            if (++i == value.length()) {
+                throw new CorruptIndexException("Unfinished escape");
+            }
+            switch (value.charAt(i)) {
+                case '\\':
+                    unescaped.append('\\');
+                    break;
+                case 't':
+                    unescaped.append('\t');
+                    break;
+                case 'n':
+                    unescaped.append('\n');
+                    break;
+                case 'r':
+                    unescaped.append('\r');
+                    break;
+                default:
+                    throw new CorruptIndexException("Unknown escape \\" + value.charAt(i));
+            }
+        }
+        return unescaped.toString();
+    }
+
+    private static long parseNumber(String value) throws CorruptIndexException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new CorruptIndexException("Malformed number " + value);
+        }
+    }
+
+    private static final class CorruptIndexException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        CorruptIndexException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * One <code>item</code> of HISTORY or VERSIONHISTORY output. VERSIONHISTORY
+ * items describe a version of the folder, HISTORY items describe an action
+ * on a single file or folder within it.
+ *
+ * @author Stuart Whelan
+ */
+public final class VaultSCMHistoryItem {
+
+    /**
+     * HISTORY action type of an item being added to a folder.
+     */
+    public static final int TYPE_ADDED = 10;
+
+    /**
+     * HISTORY action types of an item being branched, from a folder, an item,
+     * a share or an item in a share.
+     */
+    public static final int TYPE_BRANCHED_FROM = 20;
+    public static final int TYPE_BRANCHED_FROM_ITEM = 30;
+    public static final int TYPE_BRANCHED_FROM_SHARE = 40;
+    public static final int TYPE_BRANCHED_FROM_SHARE_ITEM = 50;
+
+    /**
+     * HISTORY action type of a new version of a file being checked in.
+     */
+    public static final int TYPE_CHECK_IN = 60;
+
+    /**
+     * HISTORY action type of a folder being created.
+     */
+    public static final int TYPE_CREATED = 70;
+
+    /**
+     * HISTORY action type of an item being deleted.
+     */
+    public static final int TYPE_DELETED = 80;
+
+    /**
+     * HISTORY action type of a label being applied.
+     */
+    public static final int TYPE_LABEL = 90;
+
+    /**
+     * HISTORY action types of an item being moved out of and into a folder.
+     */
+    public static final int TYPE_MOVED_FROM = 120;
+    public static final int TYPE_MOVED_TO = 130;
+
+    /**
+     * HISTORY action type of a deleted item being removed from the repository for good.
+     */
+    public static final int TYPE_OBLITERATED = 140;
+
+    /**
+     * HISTORY action types of an item being pinned to, and released from, a version.
+     */
+    public static final int TYPE_PINNED = 150;
+    public static final int TYPE_UNPINNED = 220;
+
+    /**
+     * HISTORY action type of the properties of an item being changed.
+     */
+    public static final int TYPE_PROPERTY_CHANGE = 160;
+
+    /**
+     * HISTORY action types of a folder and of an item in it being renamed.
+     */
+    public static final int TYPE_RENAMED = 170;
+    public static final int TYPE_RENAMED_ITEM = 180;
+
+    /**
+     * HISTORY action type of an item being shared into a folder.
+     */
+    public static final int TYPE_SHARED_TO = 190;
+
+    /**
+     * HISTORY action types of a snapshot being taken of a folder, and of the
+     * snapshot folder and its items being created.
+     */
+    public static final int TYPE_SNAPSHOT = 200;
+    public static final int TYPE_SNAPSHOT_FROM = 201;
+    public static final int TYPE_SNAPSHOT_ITEM = 202;
+
+    /**
+     * HISTORY action type of a deleted item being restored.
+     */
+    public static final int TYPE_UNDELETED = 210;
+
+    /**
+     * HISTORY action type of an item being rolled back to an earlier version.
+     */
+    public static final int TYPE_ROLLBACK = 230;
+
+    private final long version;
+    private final String txid;
+    private final String date;
+    private final String user;
+    private final String comment;
+    private final String name;
+    private final int type;
+
+    public VaultSCMHistoryItem(long version, String txid, String date, String user, String comment, String name, int type) {
+        this.version = version;
+        this.txid = txid;
+        this.date = date;
+        this.user = user;
+        this.comment = comment;
+        this.name = name;
+        this.type = type;
+    }
+
+    /**
+     * @return the folder version for VERSIONHISTORY items, or the object version for HISTORY items.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the transaction the item belongs to, or an empty string if the client did not report one.
+     */
+    public String getTxid() {
+        return txid;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getComment() {
+        return comment;
+    }
+
+    /**
+     * @return the repository path the action applies to (HISTORY only).
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the action type (HISTORY only), or 0 if unknown.
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Reads the item element the reader is positioned on.
+     */
+    static VaultSCMHistoryItem read(XMLStreamReader reader) {
+        return new VaultSCMHistoryItem(
+                parseNumber(VaultSCMChangeLogParser.attribute(reader, "version")),
+                VaultSCMChangeLogParser.attribute(reader, "txid"),
+                VaultSCMChangeLogParser.attribute(reader, "date"),
+                VaultSCMChangeLogParser.attribute(reader, "user"),
+                VaultSCMChangeLogParser.attribute(reader, "comment"),
+                VaultSCMChangeLogParser.attribute(reader, "name"),
+                (int) parseNumber(VaultSCMChangeLogParser.attribute(reader, "type")));
+    }
+
+    /**
+     * Receives the items of history output one at a time.
+     */
+    public interface Handler {
+        void item(VaultSCMHistoryItem item) throws IOException;
+    }
+
+    /**
+     * Reads all items of HISTORY or VERSIONHISTORY output.
+     */
+    public static List<VaultSCMHistoryItem> parse(InputStream in) throws IOException {
+        final List<VaultSCMHistoryItem> items = new ArrayList<VaultSCMHistoryItem>();
+        parse(in, new Handler() {
+            public void item(VaultSCMHistoryItem item) {
+                items.add(item);
+            }
+        });
+        return items;
+    }
+
+    /**
+     * Streams the items of HISTORY or VERSIONHISTORY output to the handler,
+     * without holding more than one in memory.
+     */
+    public static void parse(InputStream in, Handler handler) throws IOException {
+        try {
+            XMLStreamReader reader = VaultSCMChangeLogParser.newInputFactory().createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && "item".equals(reader.getLocalName())) {
+                        handler.item(read(reader));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to parse Vault history output", e);
+        }
+    }
+
+    private static long parseNumber(String value) {
+        try {
+            return value.isEmpty() ? 0 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -97,6 +97,7 @@ public final class VaultSCMInstallation extends ToolInstallation implements Node
         @Override
         public void setInstallations(VaultSCMInstallation... installations) {
             this.installations = installations;
+            VaultSCMExecutableCache.clear();
             save();
         }
     }
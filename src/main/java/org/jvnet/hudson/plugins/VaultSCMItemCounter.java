@@ -0,0 +1,57 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.OutputStream;
+
+/**
+ * Counts the history items in VERSIONHISTORY output as it streams past,
+ * without keeping the output anywhere. Polling uses it to stop the client
+ * as soon as it knows that there is at least one change.
+ *
+ * @author Stuart Whelan
+ */
+public final class VaultSCMItemCounter extends OutputStream {
+
+    private static final byte[] ITEM_TAG = {'<', 'i', 't', 'e', 'm'};
+
+    private final int limit;
+    private int matched;
+    private volatile int count;
+
+    /**
+     * @param limit the number of items after which {@link #isLimitReached()} becomes true.
+     */
+    public VaultSCMItemCounter(int limit) {
+        this.limit = limit;
+    }
+
+    @Override
+    public void write(int b) {
+        if (matched == ITEM_TAG.length) {
+            //only count <item followed by the end of the tag name, not e.g. <items
+            if (b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '/' || b == '>') {
+                count++;
+            }
+            matched = 0;
+        }
+        if (b == ITEM_TAG[matched]) {
+            matched++;
+        } else {
+            matched = b == ITEM_TAG[0] ? 1 : 0;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            write(b[i]);
+        }
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public boolean isLimitReached() {
+        return count >= limit;
+    }
+}
@@ -0,0 +1,83 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * A repository path a job fetches and the folder of the workspace it goes to.
+ *
+ * @author Stuart Whelan
+ */
+public final class VaultSCMLocation extends AbstractDescribableImpl<VaultSCMLocation> {
+
+    private final String path;
+    private final String subDirectory;
+
+    /**
+     * @param path the repository path, starting with $.
+     * @param subDirectory the folder relative to the workspace, empty for the workspace itself.
+     */
+    @DataBoundConstructor
+    public VaultSCMLocation(String path, String subDirectory) {
+        this.path = path;
+        this.subDirectory = Util.fixNull(Util.fixEmptyAndTrim(subDirectory));
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getSubDirectory() {
+        return subDirectory == null ? "" : subDirectory;
+    }
+
+    /**
+     * @return why the folder cannot be used, or null if it stays inside the workspace.
+     */
+    static String checkSubDirectory(String subDirectory) {
+        if (subDirectory == null || subDirectory.trim().isEmpty()) {
+            return null;
+        }
+        String folder = subDirectory.trim();
+        if (folder.startsWith("/") || folder.startsWith("\\") || folder.matches("[A-Za-z]:.*")) {
+            return "The folder must be relative to the workspace: " + folder;
+        }
+        for (String part : folder.split("[/\\\\]")) {
+            if (part.equals("..")) {
+                return "The folder must not leave the workspace: " + folder;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the folder the path is fetched into.
+     */
+    FilePath getTarget(FilePath workspace) {
+        return getSubDirectory().isEmpty() ? workspace : workspace.child(getSubDirectory());
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<VaultSCMLocation> {
+
+        @Override
+        public String getDisplayName() {
+            return "Vault path";
+        }
+
+        public FormValidation doCheckPath(@QueryParameter String value) {
+            return FormValidation.validateRequired(value);
+        }
+
+        public FormValidation doCheckSubDirectory(@QueryParameter String value) {
+            String error = checkSubDirectory(value);
+            return error == null ? FormValidation.ok() : FormValidation.error(error);
+        }
+    }
+}
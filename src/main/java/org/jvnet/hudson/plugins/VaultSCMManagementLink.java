@@ -0,0 +1,43 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+
+/**
+ * A page under Manage Jenkins showing how long Vault commands wait for a
+ * slot and how long they run, to tell whether Vault or Jenkins is the
+ * bottleneck.
+ *
+ * @author Stuart Whelan
+ */
+@Extension
+public final class VaultSCMManagementLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "graph.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Vault Commands";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Wait and execution times of SourceGear Vault client commands.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "vault-scm";
+    }
+
+    public VaultSCMCommandStats getCommandStats() {
+        return VaultSCM.DESCRIPTOR.getCommandStats();
+    }
+
+    public VaultSCMHistoryCache<Long> getHistoryCache() {
+        return VaultSCM.DESCRIPTOR.getHistoryCache();
+    }
+}
@@ -0,0 +1,296 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A copy of a repository path kept on an agent, under
+ * <code>vault-mirrors</code> in the agent's root folder. It is brought up to
+ * date with one GET per version and workspaces on the agent are populated
+ * from it by a local copy, so each version crosses the network once per
+ * agent rather than once per workspace.
+ * <p>
+ * All commands are started from the controller, so a lock per agent and
+ * mirror held there is enough to keep executors apart: updating takes the
+ * write lock, copying into a workspace the read lock.
+ * <p>
+ * Each workspace folder populated from a mirror keeps a list of the files
+ * copied into it, so that files later deleted in the repository are deleted
+ * from the workspace too, as a GET with <code>-performdeletions</code> would.
+ *
+ * @author Stuart Whelan
+ */
+final class VaultSCMMirror {
+
+    private static final String ROOT = "vault-mirrors";
+
+    private static final ConcurrentMap<String, ReadWriteLock> LOCKS = new ConcurrentHashMap<String, ReadWriteLock>();
+
+    private final String nodeName;
+    private final FilePath directory;
+
+    /**
+     * @param nodeRoot the root folder of the agent.
+     * @param key identifies the server, repository and path mirrored.
+     */
+    VaultSCMMirror(String nodeName, FilePath nodeRoot, String key) {
+        this.nodeName = nodeName;
+        this.directory = getRoot(nodeRoot).child(Util.getDigestOf(key));
+    }
+
+    FilePath getDirectory() {
+        return directory;
+    }
+
+    ReadWriteLock getLock() {
+        return getLock(nodeName, directory.getName());
+    }
+
+    /**
+     * Copies the mirror into the workspace, skipping files the workspace
+     * already has with the same size and modification time, and deletes the
+     * files an earlier copy left there that the mirror no longer has. Other
+     * files in the workspace, such as build output, are left alone. The read
+     * lock must be held.
+     *
+     * @param manifest the list of files copied into the workspace folder, updated by the copy.
+     * @param hardLinks link files rather than copy them, where the file system allows it.
+     * @return the number of files copied or linked, and the number deleted.
+     */
+    int[] copyTo(FilePath workspace, FilePath manifest, boolean hardLinks) throws IOException, InterruptedException {
+        manifest.getParent().mkdirs();
+        return directory.act(new Copier(workspace.getRemote(), manifest.getRemote(), hardLinks));
+    }
+
+    /**
+     * Deletes the least recently used mirrors of the agent until the rest
+     * fit in the limit. Mirrors in use are left alone.
+     */
+    static void evict(String nodeName, FilePath nodeRoot, long maxBytes, TaskListener listener) throws IOException, InterruptedException {
+        FilePath root = getRoot(nodeRoot);
+        List<Usage> usages = root.act(new Lister());
+        long total = 0;
+        for (Usage usage : usages) {
+            total += usage.size;
+        }
+
+        Collections.sort(usages, new Comparator<Usage>() {
+            public int compare(Usage a, Usage b) {
+                return Long.compare(a.lastUsed, b.lastUsed);
+            }
+        });
+        for (Usage usage : usages) {
+            if (total <= maxBytes) {
+                break;
+            }
+            ReadWriteLock lock = getLock(nodeName, usage.name);
+            if (!lock.writeLock().tryLock()) {
+                continue;
+            }
+            try {
+                listener.getLogger().println("Deleting the least recently used Vault mirror " + usage.name + " ("
+                        + usage.size / (1024 * 1024) + " MB).");
+                root.child(usage.name).deleteRecursive();
+                //the version marker lives next to the mirror
+                root.child(usage.name + "@tmp").deleteRecursive();
+                total -= usage.size;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private static FilePath getRoot(FilePath nodeRoot) {
+        return nodeRoot.child(ROOT);
+    }
+
+    private static ReadWriteLock getLock(String nodeName, String name) {
+        String key = nodeName + "|" + name;
+        ReadWriteLock lock = LOCKS.get(key);
+        if (lock == null) {
+            ReadWriteLock created = new ReentrantReadWriteLock(true);
+            lock = LOCKS.putIfAbsent(key, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Copies or links the mirror into a workspace, on the agent.
+     */
+    private static final class Copier extends MasterToSlaveFileCallable<int[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String target;
+        private final String manifest;
+        private final boolean hardLinks;
+
+        Copier(String target, String manifest, boolean hardLinks) {
+            this.target = target;
+            this.manifest = manifest;
+            this.hardLinks = hardLinks;
+        }
+
+        public int[] invoke(File mirror, VirtualChannel channel) throws IOException {
+            //the modification time of the mirror folder records when it was last used
+            mirror.setLastModified(System.currentTimeMillis());
+
+            final Path source = mirror.toPath();
+            final Path destination = new File(target).toPath();
+            final int[] copied = {0};
+            final Set<String> files = new HashSet<String>();
+            Files.createDirectories(destination);
+            Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    Files.createDirectories(destination.resolve(source.relativize(dir).toString()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    String name = source.relativize(file).toString();
+                    files.add(name);
+                    Path to = destination.resolve(name);
+                    if (Files.exists(to, LinkOption.NOFOLLOW_LINKS)) {
+                        if (hardLinks ? Files.isSameFile(file, to)
+                                : Files.size(to) == attrs.size()
+                                        //copies do not keep the full precision of the time everywhere
+                                        && Files.getLastModifiedTime(to).toMillis() == attrs.lastModifiedTime().toMillis()) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        //files may have been fetched read-only
+                        to.toFile().setWritable(true);
+                        Files.delete(to);
+                    }
+                    if (hardLinks) {
+                        try {
+                            Files.createLink(to, file);
+                            copied[0]++;
+                            return FileVisitResult.CONTINUE;
+                        } catch (UnsupportedOperationException e) {
+                            //fall back to copying
+                        } catch (IOException e) {
+                            //e.g. the workspace is on another volume
+                        }
+                    }
+                    Files.copy(file, to, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+                    copied[0]++;
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            //only files an earlier copy put there are deleted, the rest of the workspace is not ours
+            int deleted = 0;
+            Path list = new File(manifest).toPath();
+            if (Files.exists(list)) {
+                BufferedReader reader = Files.newBufferedReader(list, StandardCharsets.UTF_8);
+                try {
+                    String name;
+                    while ((name = reader.readLine()) != null) {
+                        if (name.isEmpty() || files.contains(name)) {
+                            continue;
+                        }
+                        File stale = destination.resolve(name).toFile();
+                        stale.setWritable(true);
+                        if (stale.isFile() && stale.delete()) {
+                            deleted++;
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+
+            BufferedWriter writer = Files.newBufferedWriter(list, StandardCharsets.UTF_8);
+            try {
+                for (String name : files) {
+                    writer.write(name);
+                    writer.newLine();
+                }
+            } finally {
+                writer.close();
+            }
+            return new int[] {copied[0], deleted};
+        }
+    }
+
+    /**
+     * The disk use of one mirror.
+     */
+    private static final class Usage implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final String name;
+        final long size;
+        final long lastUsed;
+
+        Usage(String name, long size, long lastUsed) {
+            this.name = name;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    /**
+     * Measures the mirrors of an agent, on the agent.
+     */
+    private static final class Lister extends MasterToSlaveFileCallable<List<Usage>> {
+
+        private static final long serialVersionUID = 1L;
+
+        public List<Usage> invoke(File root, VirtualChannel channel) throws IOException {
+            List<Usage> usages = new ArrayList<Usage>();
+            File[] mirrors = root.listFiles();
+            if (mirrors == null) {
+                return usages;
+            }
+            for (File mirror : mirrors) {
+                if (!mirror.isDirectory() || mirror.getName().endsWith("@tmp")) {
+                    continue;
+                }
+                final long[] size = {0};
+                Files.walkFileTree(mirror.toPath(), new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        size[0] += attrs.size();
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+                usages.add(new Usage(mirror.getName(), size[0], mirror.lastModified()));
+            }
+            return usages;
+        }
+    }
+}
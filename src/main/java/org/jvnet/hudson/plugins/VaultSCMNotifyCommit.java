@@ -0,0 +1,155 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.UnprotectedRootAction;
+import hudson.scm.SCM;
+import hudson.security.ACL;
+import hudson.security.csrf.CrumbExclusion;
+import hudson.util.Secret;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import jenkins.model.Jenkins;
+import jenkins.triggers.SCMTriggerItem;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Lets a Vault check-in hook tell Jenkins about a check-in, so that jobs do
+ * not have to poll on a short schedule to pick it up:
+ *
+ * <pre>
+ * /vault-scm-hook/notifyCommit?token=...&amp;server=vault.example.com&amp;repository=Default+Repository&amp;path=$/product/src
+ * </pre>
+ *
+ * The path parameter may be repeated, and left out to mean anything in the
+ * repository. Every job with polling enabled whose Vault server, repository
+ * and path match is polled at once, and builds if the poll finds the new
+ * version. The endpoint needs no login but only answers when the token
+ * matches the one set on the Configure System page. Hooks cannot fetch a
+ * crumb, so POSTs to it are exempt from CSRF protection; the token stands in
+ * for it.
+ *
+ * @author Stuart Whelan
+ */
+@Extension
+public final class VaultSCMNotifyCommit implements UnprotectedRootAction {
+
+    private static final Logger LOG = Logger.getLogger(VaultSCMNotifyCommit.class.getName());
+
+    private static final String URL_NAME = "vault-scm-hook";
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    public void doNotifyCommit(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Secret token = VaultSCM.DESCRIPTOR.getNotifyCommitToken();
+        if (token == null || token.getPlainText().isEmpty()) {
+            rsp.sendError(HttpServletResponse.SC_FORBIDDEN, "Check-in notifications are not enabled.");
+            return;
+        }
+        String given = req.getParameter("token");
+        if (given == null || !MessageDigest.isEqual(given.getBytes(Charset.forName("UTF-8")),
+                token.getPlainText().getBytes(Charset.forName("UTF-8")))) {
+            rsp.sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid token.");
+            return;
+        }
+
+        final String server = req.getParameter("server");
+        final String repository = req.getParameter("repository");
+        if (server == null || repository == null) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The server and repository parameters are required.");
+            return;
+        }
+        String[] paths = req.getParameterValues("path");
+        final List<String> changedPaths = paths == null ? Collections.<String>emptyList() : Arrays.asList(paths);
+
+        final List<String> scheduled = new ArrayList<String>();
+        final List<String> skipped = new ArrayList<String>();
+        //the caller has no user, but jobs it may not see still need to learn of the check-in
+        ACL.impersonate(ACL.SYSTEM, new Runnable() {
+            public void run() {
+                for (Job<?,?> job : Jenkins.getInstance().getAllItems(Job.class)) {
+                    scheduleIfAffected(job, server, repository, changedPaths, scheduled, skipped);
+                }
+            }
+        });
+        LOG.info("Check-in to " + server + " " + repository + " " + changedPaths + " scheduled polling of " + scheduled);
+
+        rsp.setStatus(HttpServletResponse.SC_OK);
+        rsp.setContentType("text/plain;charset=UTF-8");
+        PrintWriter out = rsp.getWriter();
+        for (String job : scheduled) {
+            out.println("Scheduled polling of " + job);
+        }
+        for (String job : skipped) {
+            out.println("No polling trigger on " + job + ", not scheduled");
+        }
+        if (scheduled.isEmpty() && skipped.isEmpty()) {
+            out.println("No jobs use " + server + " " + repository + " " + changedPaths);
+        }
+    }
+
+    private static void scheduleIfAffected(Item job, String server, String repository, List<String> changedPaths,
+            List<String> scheduled, List<String> skipped) {
+        SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
+        if (item == null) {
+            return;
+        }
+        boolean affected = false;
+        for (SCM scm : item.getSCMs()) {
+            if (scm instanceof VaultSCM && ((VaultSCM) scm).isAffectedBy(server, repository, changedPaths)) {
+                ((VaultSCM) scm).invalidatePollingState();
+                affected = true;
+            }
+        }
+        if (!affected) {
+            return;
+        }
+        //only jobs that poll, as the poll confirms there is something new to build
+        if (item.getSCMTrigger() != null && item.schedulePolling()) {
+            scheduled.add(job.getFullName());
+        } else {
+            skipped.add(job.getFullName());
+        }
+    }
+
+    /**
+     * Lets check-in hooks POST without a crumb.
+     */
+    @Extension
+    public static final class CrumbExclusionImpl extends CrumbExclusion {
+
+        @Override
+        public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain)
+                throws IOException, ServletException {
+            String pathInfo = req.getPathInfo();
+            if (pathInfo != null && pathInfo.startsWith("/" + URL_NAME + "/")) {
+                chain.doFilter(req, resp);
+                return true;
+            }
+            return false;
+        }
+    }
+}
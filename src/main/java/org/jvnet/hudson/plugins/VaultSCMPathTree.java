@@ -0,0 +1,75 @@
+package org.jvnet.hudson.plugins;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores repository paths as a tree of path segments, so that the many
+ * files of a changelog share the nodes of their common folders instead of
+ * each holding a full copy of the path.
+ *
+ * @author Stuart Whelan
+ */
+final class VaultSCMPathTree {
+
+    private final Node root = new Node(null, "");
+
+    /**
+     * @return the node for the path, created if this is its first use.
+     */
+    synchronized Node intern(String path) {
+        Node node = root;
+        int start = 0;
+        while (start <= path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            node = node.child(path.substring(start, end));
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * One segment of a path. The full path is only rebuilt when asked for.
+     */
+    static final class Node {
+
+        private final Node parent;
+        private final String name;
+        private Map<String, Node> children;
+
+        private Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        private Node child(String childName) {
+            if (children == null) {
+                children = new HashMap<String, Node>(4);
+            }
+            Node child = children.get(childName);
+            if (child == null) {
+                child = new Node(this, childName);
+                children.put(childName, child);
+            }
+            return child;
+        }
+
+        String getPath() {
+            if (parent == null) {
+                return "";
+            }
+            if (parent.parent == null) {
+                return name;
+            }
+            return parent.getPath() + "/" + name;
+        }
+
+        @Override
+        public String toString() {
+            return getPath();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.jvnet.hudson.plugins;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces out the polls of quiet paths. Every poll that finds no new version
+ * doubles the time until the path is queried again, up to a cap, and a new
+ * version puts the path back to being queried at every trigger. Paths are
+ * tracked per server, repository and path, so jobs on the same path back
+ * off together.
+ *
+ * @author Stuart Whelan
+ */
+public final class VaultSCMPollBackoff {
+
+    /**
+     * The interval after the first quiet poll.
+     */
+    static final long MIN_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final ConcurrentMap<String, PathActivity> paths = new ConcurrentHashMap<String, PathActivity>();
+
+    /**
+     * @param lastVersion the version the polling job last built, or null if unknown.
+     * @return whether the path is due to be queried. It always is if the job
+     *         is behind a version already seen by another job.
+     */
+    public boolean isDue(String key, Long lastVersion, long now) {
+        PathActivity activity = paths.get(key);
+        if (activity == null) {
+            return true;
+        }
+        synchronized (activity) {
+            if (lastVersion != null && activity.latestVersion > lastVersion.longValue()) {
+                return true;
+            }
+            return now >= activity.nextPoll;
+        }
+    }
+
+    /**
+     * Records the result of querying the path.
+     *
+     * @param latestVersion the latest version found, or null if only the change count is known.
+     * @param changed whether the query found changes, used when the version is not known.
+     * @param maxIntervalMillis the longest the path may go without being queried.
+     */
+    public void polled(String key, Long latestVersion, boolean changed, long now, long maxIntervalMillis) {
+        PathActivity activity = paths.get(key);
+        if (activity == null) {
+            PathActivity created = new PathActivity();
+            activity = paths.putIfAbsent(key, created);
+            if (activity == null) {
+                activity = created;
+            }
+        }
+        synchronized (activity) {
+            boolean active = latestVersion == null ? changed
+                    : activity.latestVersion >= 0 && latestVersion.longValue() > activity.latestVersion;
+            if (latestVersion != null) {
+                activity.latestVersion = Math.max(activity.latestVersion, latestVersion.longValue());
+            }
+            if (active) {
+                activity.interval = 0;
+                activity.lastChange = now;
+            } else {
+                activity.interval = Math.min(Math.max(MIN_INTERVAL_MILLIS, activity.interval * 2), maxIntervalMillis);
+            }
+            activity.nextPoll = now + activity.interval;
+        }
+    }
+
+    /**
+     * @return how long the path currently goes between queries, 0 if it is
+     *         queried at every trigger.
+     */
+    public long getIntervalMillis(String key) {
+        PathActivity activity = paths.get(key);
+        if (activity == null) {
+            return 0;
+        }
+        synchronized (activity) {
+            return activity.interval;
+        }
+    }
+
+    /**
+     * @return when a new version of the path was last seen, 0 if never.
+     */
+    public long getLastChange(String key) {
+        PathActivity activity = paths.get(key);
+        if (activity == null) {
+            return 0;
+        }
+        synchronized (activity) {
+            return activity.lastChange;
+        }
+    }
+
+    /**
+     * Makes the path due, e.g. when a check-in to it was announced, so that
+     * it is queried at the next trigger.
+     */
+    public void reset(String key) {
+        PathActivity activity = paths.get(key);
+        if (activity != null) {
+            synchronized (activity) {
+                activity.interval = 0;
+                activity.nextPoll = 0;
+            }
+        }
+    }
+
+    /**
+     * Forgets all paths, so that they are queried at the next trigger.
+     */
+    public void clear() {
+        paths.clear();
+    }
+
+    private static final class PathActivity {
+        long latestVersion = -1;
+        long interval;
+        long nextPoll;
+        long lastChange;
+    }
+}
@@ -0,0 +1,93 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.scm.SCM;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import jenkins.model.TransientActionFactory;
+import jenkins.triggers.SCMTriggerItem;
+
+/**
+ * Shows on the job page how often the Vault paths of the job are currently
+ * queried when polling is backed off.
+ *
+ * @author Stuart Whelan
+ */
+public final class VaultSCMPollingAction implements Action {
+
+    private final List<VaultSCM> scms;
+
+    VaultSCMPollingAction(List<VaultSCM> scms) {
+        this.scms = scms;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Vault polling";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    public List<VaultSCM> getScms() {
+        return scms;
+    }
+
+    /**
+     * @return how often the path of the SCM is queried, for display.
+     */
+    public String getEffectiveInterval(VaultSCM scm, String path) {
+        long interval = VaultSCM.DESCRIPTOR.getPollBackoff().getIntervalMillis(scm.getActivityKey(path));
+        if (interval == 0) {
+            return "at every trigger";
+        }
+        return "at most every " + Util.getTimeSpanString(interval);
+    }
+
+    /**
+     * @return how long ago a new version of the path was seen, or null if none was.
+     */
+    public String getLastChange(VaultSCM scm, String path) {
+        long lastChange = VaultSCM.DESCRIPTOR.getPollBackoff().getLastChange(scm.getActivityKey(path));
+        return lastChange == 0 ? null : Util.getPastTimeString(System.currentTimeMillis() - lastChange);
+    }
+
+    @Extension
+    public static final class Factory extends TransientActionFactory<Job> {
+
+        @Override
+        public Class<Job> type() {
+            return Job.class;
+        }
+
+        @Override
+        public Collection<? extends Action> createFor(Job target) {
+            if (VaultSCM.DESCRIPTOR.getMaxPollBackoffMinutes() == 0) {
+                return Collections.emptyList();
+            }
+            SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(target);
+            if (item == null) {
+                return Collections.emptyList();
+            }
+            List<VaultSCM> scms = new ArrayList<VaultSCM>();
+            for (SCM scm : item.getSCMs()) {
+                if (scm instanceof VaultSCM) {
+                    scms.add((VaultSCM) scm);
+                }
+            }
+            if (scms.isEmpty()) {
+                return Collections.emptyList();
+            }
+            return Collections.singleton(new VaultSCMPollingAction(scms));
+        }
+    }
+}
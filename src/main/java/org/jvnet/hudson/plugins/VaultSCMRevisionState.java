@@ -10,6 +10,12 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * The polling baseline of a build: the Vault folder version fetched for each
+ * configured path, keyed by repository path. Builds made before versions were
+ * recorded only carry the build date. Checkout adds this to the build as an
+ * action so that it is saved with the build record.
+ */
 public class VaultSCMRevisionState extends SCMRevisionState {
 
     public Map<String, Long> revisions;
@@ -32,6 +38,25 @@ public class VaultSCMRevisionState extends SCMRevisionState {
         revisions.put(key, value);
     }
 
+    /**
+     * @return the version recorded for the repository path, or null if none was.
+     */
+    public Long getRevision(String key) {
+        if (revisions == null) {
+            return null;
+        }
+        return revisions.get(key);
+    }
+
+    /**
+     * @return whether a version was recorded for the repository path and the
+     *         given version is newer than it.
+     */
+    public boolean isOlderThan(String key, long version) {
+        Long recorded = getRevision(key);
+        return recorded != null && recorded.longValue() < version;
+    }
+
     public void setRevisions(Map<String, Long> revisions) {
         this.revisions = revisions;
     }
@@ -0,0 +1,158 @@
+package org.jvnet.hudson.plugins;
+
+import hudson.FilePath;
+import hudson.slaves.WorkspaceList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Records which version of each repository path a workspace holds. The
+ * record lives next to the workspace (in its <code>@tmp</code> folder) so
+ * that it never shows up in build output, and is cleared before a GET starts
+ * so that an interrupted GET leaves the workspace state unknown. Wiping the
+ * workspace leaves the <code>@tmp</code> folder behind, so a record is only
+ * trusted while the folder it describes still has contents.
+ *
+ * @author Stuart Whelan
+ */
+public final class VaultSCMWorkspaceMarker {
+
+    private static final String FILE_NAME = "vault-scm.properties";
+
+    /**
+     * Suffix of the key listing the top level entries of the target folder.
+     * Entries are separated by <code>/</code>, which no file name contains.
+     */
+    private static final String ENTRIES_SUFFIX = "|entries";
+
+    private final long version;
+    private final long timestamp;
+    private final List<String> entries;
+
+    private VaultSCMWorkspaceMarker(long version, long timestamp, List<String> entries) {
+        this.version = version;
+        this.timestamp = timestamp;
+        this.entries = entries;
+    }
+
+    /**
+     * @return the version of the path in the workspace.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return when the version was recorded, in controller time.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Checks that the target folder still has every top level file and folder
+     * the GET left in it, so that a partly wiped workspace is not taken as
+     * up to date.
+     *
+     * @return false if an entry is missing or the marker predates the check.
+     */
+    public boolean isIntact(FilePath target) throws IOException, InterruptedException {
+        if (entries == null) {
+            return false;
+        }
+        Set<String> present = new HashSet<String>();
+        for (FilePath child : target.list()) {
+            present.add(child.getName());
+        }
+        return present.containsAll(entries);
+    }
+
+    /**
+     * @param target the folder the path was fetched into.
+     * @return the marker for the key, or null if the workspace state is unknown
+     *         or the target folder is missing or empty.
+     */
+    public static synchronized VaultSCMWorkspaceMarker read(FilePath workspace, FilePath target, String key) throws IOException, InterruptedException {
+        Properties props = load(workspace);
+        String value = props.getProperty(key);
+        if (value == null) {
+            return null;
+        }
+        if (!target.isDirectory() || target.list().isEmpty()) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        String entries = props.getProperty(key + ENTRIES_SUFFIX);
+        try {
+            return new VaultSCMWorkspaceMarker(Long.parseLong(parts[0]), parts.length > 1 ? Long.parseLong(parts[1]) : 0,
+                    entries == null ? null : entries.isEmpty() ? Arrays.<String>asList() : Arrays.asList(entries.split("/")));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Records the version of the path in the workspace, along with the top
+     * level entries of the target folder. Like {@link #clear}, this rewrites
+     * the whole file, so updates are serialized for checkouts of several
+     * paths at once.
+     */
+    public static synchronized void write(FilePath workspace, FilePath target, String key, long version) throws IOException, InterruptedException {
+        StringBuilder entries = new StringBuilder();
+        for (FilePath child : target.list()) {
+            if (entries.length() > 0) {
+                entries.append('/');
+            }
+            entries.append(child.getName());
+        }
+        Properties props = load(workspace);
+        props.setProperty(key, version + "," + System.currentTimeMillis());
+        props.setProperty(key + ENTRIES_SUFFIX, entries.toString());
+        save(workspace, props);
+    }
+
+    public static synchronized void clear(FilePath workspace, String key) throws IOException, InterruptedException {
+        Properties props = load(workspace);
+        boolean removed = props.remove(key) != null;
+        removed |= props.remove(key + ENTRIES_SUFFIX) != null;
+        if (removed) {
+            save(workspace, props);
+        }
+    }
+
+    private static FilePath getFile(FilePath workspace) {
+        return WorkspaceList.tempDir(workspace).child(FILE_NAME);
+    }
+
+    private static Properties load(FilePath workspace) throws IOException, InterruptedException {
+        Properties props = new Properties();
+        FilePath file = getFile(workspace);
+        if (file.exists()) {
+            InputStream in = file.read();
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return props;
+    }
+
+    private static void save(FilePath workspace, Properties props) throws IOException, InterruptedException {
+        FilePath file = getFile(workspace);
+        file.getParent().mkdirs();
+        OutputStream out = file.write();
+        try {
+            props.store(out, "Vault versions held in " + workspace.getRemote());
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.jvnet.hudson.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.scm.ChangeLogSet;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Parses synthetic changelogs of 100,000 items, as written by checkout, and
+ * checks that the entries are built within a heap ceiling and a time budget.
+ * A DOM of such a changelog alone takes several times the ceiling.
+ */
+public class VaultSCMChangeLogParserTest {
+
+    private static final int ITEMS = 100000;
+
+    /**
+     * Heap the parsed set may hold on to. The entries share their author
+     * names, dates and paths, so most of it is comments and versions.
+     */
+    private static final long HEAP_CEILING_BYTES = 96L * 1024 * 1024;
+
+    /**
+     * Heap a set read lazily from a compressed changelog may hold on to.
+     */
+    private static final long LAZY_HEAP_CEILING_BYTES = 4L * 1024 * 1024;
+
+    private static final long PARSE_BUDGET_MILLIS = TimeUnit.SECONDS.toMillis(20);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void largeChangelogIsParsedWithinHeapCeilingAndTimeBudget() throws Exception {
+        File changelog = writeChangelog(false);
+
+        long before = usedHeap();
+        long start = System.nanoTime();
+        ChangeLogSet<?> set = new VaultSCMChangeLogParser().parse(null, null, changelog);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long retained = usedHeap() - before;
+
+        assertEquals(ITEMS, count(set));
+        assertTrue("Parsing took " + elapsed + " ms, the budget is " + PARSE_BUDGET_MILLIS + " ms",
+                elapsed <= PARSE_BUDGET_MILLIS);
+        assertTrue("The parsed set holds " + retained / 1024 + " KB, the ceiling is " + HEAP_CEILING_BYTES / 1024 + " KB",
+                retained <= HEAP_CEILING_BYTES);
+    }
+
+    @Test
+    public void compressedChangelogIsReadLazily() throws Exception {
+        File changelog = writeChangelog(true);
+
+        long before = usedHeap();
+        ChangeLogSet<?> set = new VaultSCMChangeLogParser().parse(null, null, changelog);
+        long retained = usedHeap() - before;
+
+        assertTrue("The lazy set holds " + retained / 1024 + " KB, the ceiling is " + LAZY_HEAP_CEILING_BYTES / 1024 + " KB",
+                retained <= LAZY_HEAP_CEILING_BYTES);
+        long start = System.nanoTime();
+        assertEquals(ITEMS, count(set));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Iterating took " + elapsed + " ms, the budget is " + PARSE_BUDGET_MILLIS + " ms",
+                elapsed <= PARSE_BUDGET_MILLIS);
+    }
+
+    @Test
+    public void externalEntitiesAreNotResolved() throws Exception {
+        File secret = tmp.newFile("secret.txt");
+        OutputStream out = new FileOutputStream(secret);
+        try {
+            out.write("top secret".getBytes(StandardCharsets.UTF_8));
+        } finally {
+            out.close();
+        }
+        File changelog = tmp.newFile("changelog.xml");
+        out = new FileOutputStream(changelog);
+        try {
+            out.write(("<?xml version=\"1.0\"?>\n"
+                    + "<!DOCTYPE vault [<!ENTITY secret SYSTEM \"" + secret.toURI() + "\">]>\n"
+                    + "<vault><history><item version=\"1\" txid=\"2\" date=\"d\" user=\"u\" comment=\"&secret;\"/></history></vault>\n")
+                    .getBytes(StandardCharsets.UTF_8));
+        } finally {
+            out.close();
+        }
+
+        ChangeLogSet<?> set = new VaultSCMChangeLogParser().parse(null, null, changelog);
+        for (Object entry : set) {
+            assertFalse(((VaultSCMChangeLogSet.VaultSCMChangeLogSetEntry) entry).getComment().contains("top secret"));
+        }
+    }
+
+    private File writeChangelog(boolean compress) throws Exception {
+        File changelog = tmp.newFile(compress ? "changelog.xml.gz" : "changelog.xml");
+        VaultSCMPathTree paths = new VaultSCMPathTree();
+        String[] users = {"alice", "bob", "carol", "dave"};
+        VaultSCMChangeLogWriter writer = new VaultSCMChangeLogWriter(changelog, compress);
+        try {
+            for (int i = ITEMS - 1; i >= 0; i--) {
+                List<VaultSCMAffectedFile> files = new ArrayList<VaultSCMAffectedFile>();
+                files.add(new VaultSCMAffectedFile(paths.intern("$/product/trunk/module" + i % 20 + "/File" + i % 500 + ".cs"),
+                        VaultSCMAffectedFile.MODIFY));
+                files.add(new VaultSCMAffectedFile(paths.intern("$/product/trunk/module" + i % 20 + "/File" + (i + 1) % 500 + ".cs"),
+                        VaultSCMAffectedFile.ADD));
+                writer.writeItem(new VaultSCMHistoryItem(i + 1, String.valueOf(100000 + i), "3/" + (1 + i % 28) + "/2018 1:15:00 PM",
+                        users[i % users.length], "Fix for issue #" + i + " in the build scripts", "", 0), files);
+            }
+        } finally {
+            writer.close();
+        }
+        return changelog;
+    }
+
+    private static int count(ChangeLogSet<?> set) {
+        int count = 0;
+        for (Object entry : set) {
+            count++;
+        }
+        return count;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,419 @@
+package org.jvnet.hudson.plugins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stands in for vault.exe. It answers GET, VERSIONHISTORY, HISTORY, LISTFOLDER and BATCH
+ * with output shaped like the real client's, after a configurable delay, and
+ * fails a configurable share of commands.
+ * <p>
+ * Run as a program it reads its settings from the environment, see
+ * {@link Settings#fromEnvironment()}; src/test/scripts has wrappers that can
+ * be set as the Vault location of a Vault installation, and
+ * {@link VaultSCMLoadTest} writes its own. The load benchmark also runs it
+ * in-process.
+ * <p>
+ * The repository holds one path with {@link Settings#historySize} folder
+ * versions, each a check-in of {@link Settings#filesPerVersion} files. When
+ * {@link Settings#checkInIntervalMillis} is set, a new version appears every
+ * interval after {@link Settings#startMillis}.
+ */
+public final class VaultSCMFakeClient {
+
+    private static final Set<String> OPTIONS_WITH_VALUE = new HashSet<String>(Arrays.asList(
+            "-host", "-user", "-password", "-repository", "-merge", "-setfiletime", "-workingfolder",
+            "-nonworkingfolder", "-performdeletions", "-rowlimit", "-beginversion", "-endversion", "-begindate", "-enddate"));
+
+    private static final long VERSION_SPACING_MILLIS = 60 * 1000;
+
+    /**
+     * How the fake behaves.
+     */
+    public static final class Settings {
+        /** Delay of history commands. */
+        public long latencyMillis = 50;
+        /** Delay of a GET of the whole path, smaller GETs take a share of it. */
+        public long getLatencyMillis = 500;
+        /** Random extra delay of up to this much. */
+        public long jitterMillis = 0;
+        /** Share of commands, 0 to 1, that fail with exit code 1. */
+        public double failureRate = 0;
+        public int historySize = 1000;
+        public int filesPerVersion = 3;
+        /** Files written by a GET of the whole path. */
+        public int files = 100;
+        public long checkInIntervalMillis = 0;
+        public long startMillis = System.currentTimeMillis();
+
+        /**
+         * Reads FAKE_VAULT_LATENCY_MS, FAKE_VAULT_GET_LATENCY_MS,
+         * FAKE_VAULT_JITTER_MS, FAKE_VAULT_FAILURE_RATE,
+         * FAKE_VAULT_HISTORY_SIZE, FAKE_VAULT_FILES_PER_VERSION,
+         * FAKE_VAULT_FILES, FAKE_VAULT_CHECKIN_INTERVAL_MS and
+         * FAKE_VAULT_START_MS, keeping the default for any that is not set.
+         */
+        public static Settings fromEnvironment() {
+            Settings settings = new Settings();
+            Map<String, String> env = System.getenv();
+            settings.latencyMillis = number(env, "FAKE_VAULT_LATENCY_MS", settings.latencyMillis);
+            settings.getLatencyMillis = number(env, "FAKE_VAULT_GET_LATENCY_MS", settings.getLatencyMillis);
+            settings.jitterMillis = number(env, "FAKE_VAULT_JITTER_MS", settings.jitterMillis);
+            settings.historySize = (int) number(env, "FAKE_VAULT_HISTORY_SIZE", settings.historySize);
+            settings.filesPerVersion = (int) number(env, "FAKE_VAULT_FILES_PER_VERSION", settings.filesPerVersion);
+            settings.files = (int) number(env, "FAKE_VAULT_FILES", settings.files);
+            settings.checkInIntervalMillis = number(env, "FAKE_VAULT_CHECKIN_INTERVAL_MS", settings.checkInIntervalMillis);
+            settings.startMillis = number(env, "FAKE_VAULT_START_MS", settings.startMillis);
+            if (env.containsKey("FAKE_VAULT_FAILURE_RATE")) {
+                settings.failureRate = Double.parseDouble(env.get("FAKE_VAULT_FAILURE_RATE"));
+            }
+            return settings;
+        }
+
+        /**
+         * @return the environment that makes a fake started as a program behave like this one.
+         */
+        public Map<String, String> toEnvironment() {
+            Map<String, String> env = new HashMap<String, String>();
+            env.put("FAKE_VAULT_LATENCY_MS", String.valueOf(latencyMillis));
+            env.put("FAKE_VAULT_GET_LATENCY_MS", String.valueOf(getLatencyMillis));
+            env.put("FAKE_VAULT_JITTER_MS", String.valueOf(jitterMillis));
+            env.put("FAKE_VAULT_FAILURE_RATE", String.valueOf(failureRate));
+            env.put("FAKE_VAULT_HISTORY_SIZE", String.valueOf(historySize));
+            env.put("FAKE_VAULT_FILES_PER_VERSION", String.valueOf(filesPerVersion));
+            env.put("FAKE_VAULT_FILES", String.valueOf(files));
+            env.put("FAKE_VAULT_CHECKIN_INTERVAL_MS", String.valueOf(checkInIntervalMillis));
+            env.put("FAKE_VAULT_START_MS", String.valueOf(startMillis));
+            return env;
+        }
+
+        private static long number(Map<String, String> env, String name, long defaultValue) {
+            String value = env.get(name);
+            return value == null || value.trim().isEmpty() ? defaultValue : Long.parseLong(value.trim());
+        }
+    }
+
+    private final Settings settings;
+
+    public VaultSCMFakeClient(Settings settings) {
+        this.settings = settings;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int exitCode = new VaultSCMFakeClient(Settings.fromEnvironment()).run(args, System.out, new File("."));
+        System.out.flush();
+        System.exit(exitCode);
+    }
+
+    /**
+     * Runs one command.
+     *
+     * @param cwd the folder a GET without a working folder writes to.
+     * @return the exit code.
+     */
+    public int run(String[] args, OutputStream output, File cwd) throws IOException, InterruptedException {
+        PrintStream out = new PrintStream(output, false, "UTF-8");
+        try {
+            if (args.length == 0) {
+                out.println("usage: vault COMMAND [options] [items]");
+                return 1;
+            }
+
+            String command = args[0].toUpperCase();
+            Map<String, String> options = new HashMap<String, String>();
+            List<String> items = new ArrayList<String>();
+            for (int i = 1; i < args.length; i++) {
+                if (OPTIONS_WITH_VALUE.contains(args[i].toLowerCase()) && i + 1 < args.length) {
+                    options.put(args[i].toLowerCase(), args[++i]);
+                } else if (args[i].startsWith("-")) {
+                    options.put(args[i].toLowerCase(), "");
+                } else {
+                    items.add(args[i]);
+                }
+            }
+
+            if ("BATCH".equals(command)) {
+                return batch(items, out, cwd);
+            }
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long delay = "GET".equals(command) ? getDelay(items) : settings.latencyMillis;
+            Thread.sleep(delay + (settings.jitterMillis > 0 ? random.nextLong(settings.jitterMillis + 1) : 0));
+            if (random.nextDouble() < settings.failureRate) {
+                out.println("<vault>");
+                out.println("  <error>Simulated failure of " + command + "</error>");
+                out.println("  <result success=\"no\" />");
+                out.println("</vault>");
+                return 1;
+            }
+
+            if ("GET".equals(command)) {
+                return get(options, items, out, cwd);
+            }
+            if ("VERSIONHISTORY".equals(command)) {
+                return versionHistory(options, items, out);
+            }
+            if ("HISTORY".equals(command)) {
+                return history(options, items, out);
+            }
+            if ("LISTFOLDER".equals(command)) {
+                return listFolder(items, out);
+            }
+            out.println("<vault>");
+            out.println("  <error>Unknown command " + command + "</error>");
+            out.println("  <result success=\"no\" />");
+            out.println("</vault>");
+            return 1;
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * @return the current folder version, which is also the number of versions.
+     */
+    long getLatestVersion() {
+        if (settings.checkInIntervalMillis <= 0) {
+            return settings.historySize;
+        }
+        return settings.historySize + Math.max(0, System.currentTimeMillis() - settings.startMillis) / settings.checkInIntervalMillis;
+    }
+
+    private long getDelay(List<String> items) {
+        //a GET of single files costs its share of a GET of the whole path
+        int files = 0;
+        for (String item : items) {
+            if (isFile(item)) {
+                files++;
+            } else {
+                files += item.matches(".*/folder[0-9]+") ? (settings.files + 9) / 10 : settings.files;
+            }
+        }
+        return settings.files == 0 ? settings.getLatencyMillis : settings.getLatencyMillis * Math.min(files, settings.files) / settings.files;
+    }
+
+    private int get(Map<String, String> options, List<String> items, PrintStream out, File cwd) throws IOException {
+        String target = options.containsKey("-nonworkingfolder") ? options.get("-nonworkingfolder") : options.get("-workingfolder");
+        File folder = target == null ? cwd : new File(target);
+        long version = getLatestVersion();
+        for (String item : items) {
+            if (isFile(item)) {
+                write(new File(folder, item.substring(item.lastIndexOf('/') + 1)), version, out);
+                continue;
+            }
+            for (int i = 0; i < settings.files; i++) {
+                String file = relativeFile(i);
+                String subfolder = file.substring(0, file.indexOf('/'));
+                if (item.endsWith("/" + subfolder)) {
+                    write(new File(folder, file.substring(subfolder.length() + 1)), version, out);
+                } else if (!item.matches(".*/folder[0-9]+")) {
+                    write(new File(folder, file), version, out);
+                }
+            }
+        }
+        out.println("<vault>");
+        out.println("  <result success=\"yes\" />");
+        out.println("</vault>");
+        return 0;
+    }
+
+    private int versionHistory(Map<String, String> options, List<String> items, PrintStream out) {
+        long[] range = getVersionRange(options);
+        int rowLimit = options.containsKey("-rowlimit") ? Integer.parseInt(options.get("-rowlimit")) : 0;
+        String path = items.isEmpty() ? "$" : items.get(0);
+
+        out.println("<vault>");
+        out.println("  <history>");
+        int rows = 0;
+        for (long v = range[1]; v >= range[0] && (rowLimit <= 0 || rows < rowLimit); v--, rows++) {
+            out.println("    <item version=\"" + v + "\" date=\"" + format(getDate(v)) + "\" user=\"" + getUser(v)
+                    + "\" comment=\"Change " + v + " to " + path + "\" txid=\"" + getTxid(v) + "\" objverid=\"" + v + "\" />");
+        }
+        out.println("  </history>");
+        out.println("  <result success=\"yes\" />");
+        out.println("</vault>");
+        return 0;
+    }
+
+    private int history(Map<String, String> options, List<String> items, PrintStream out) {
+        long[] range = getVersionRange(options);
+        int rowLimit = options.containsKey("-rowlimit") ? Integer.parseInt(options.get("-rowlimit")) : 0;
+        String path = items.isEmpty() ? "$" : items.get(0);
+
+        out.println("<vault>");
+        out.println("  <history>");
+        int rows = 0;
+        for (long v = range[1]; v >= range[0] && (rowLimit <= 0 || rows < rowLimit); v--) {
+            for (int f = 0; f < settings.filesPerVersion && (rowLimit <= 0 || rows < rowLimit); f++, rows++) {
+                int file = (int) ((v * settings.filesPerVersion + f) % Math.max(1, settings.files));
+                out.println("    <item txid=\"" + getTxid(v) + "\" date=\"" + format(getDate(v)) + "\" name=\"" + path + "/"
+                        + relativeFile(file) + "\" type=\"" + VaultSCMHistoryItem.TYPE_CHECK_IN + "\" version=\"" + v
+                        + "\" user=\"" + getUser(v) + "\" comment=\"Change " + v + "\" actionString=\"Checked In\" />");
+            }
+        }
+        out.println("  </history>");
+        out.println("  <result success=\"yes\" />");
+        out.println("</vault>");
+        return 0;
+    }
+
+    /**
+     * Lists the ten folders the files of the path are spread over.
+     */
+    private int listFolder(List<String> items, PrintStream out) {
+        String path = items.isEmpty() ? "$" : items.get(0);
+        out.println("<vault>");
+        out.println("  <folder name=\"" + path + "\" version=\"" + getLatestVersion() + "\">");
+        for (int i = 0; i < Math.min(10, settings.files); i++) {
+            out.println("    <folder name=\"" + path + "/folder" + i + "\" />");
+        }
+        out.println("  </folder>");
+        out.println("  <result success=\"yes\" />");
+        out.println("</vault>");
+        return 0;
+    }
+
+    /**
+     * Runs each line of the batch file as a command, as the real client does.
+     */
+    private int batch(List<String> items, PrintStream out, File cwd) throws IOException, InterruptedException {
+        if (items.isEmpty()) {
+            return 1;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(items.get(0)), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                int exitCode = run(split(line), out, cwd);
+                if (exitCode != 0) {
+                    return exitCode;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return 0;
+    }
+
+    /**
+     * @return the first and last version selected by -beginversion, -begindate and -enddate.
+     */
+    private long[] getVersionRange(Map<String, String> options) {
+        long latest = getLatestVersion();
+        long first = 1;
+        long last = latest;
+        if (options.containsKey("-beginversion")) {
+            first = Math.max(first, Long.parseLong(options.get("-beginversion")));
+        }
+        if (options.containsKey("-endversion")) {
+            last = Math.min(last, Long.parseLong(options.get("-endversion")));
+        }
+        long latestDate = getDate(latest);
+        if (options.containsKey("-begindate")) {
+            first = Math.max(first, latest - Math.floorDiv(latestDate - parse(options.get("-begindate")), VERSION_SPACING_MILLIS));
+        }
+        if (options.containsKey("-enddate")) {
+            last = Math.min(last, latest + Math.floorDiv(parse(options.get("-enddate")) - latestDate, VERSION_SPACING_MILLIS));
+        }
+        return new long[] {first, last};
+    }
+
+    /**
+     * Versions are a minute apart, the latest one made now or, with a
+     * check-in interval, when it appeared.
+     */
+    private long getDate(long version) {
+        long latest = getLatestVersion();
+        long latestDate = settings.checkInIntervalMillis <= 0 ? settings.startMillis
+                : settings.startMillis + (latest - settings.historySize) * settings.checkInIntervalMillis;
+        return latestDate - (latest - version) * VERSION_SPACING_MILLIS;
+    }
+
+    private static String getTxid(long version) {
+        return String.valueOf(100000 + version);
+    }
+
+    private static String getUser(long version) {
+        return "user" + (version % 7);
+    }
+
+    private static String relativeFile(int i) {
+        return "folder" + (i % 10) + "/File" + i + ".cs";
+    }
+
+    private static boolean isFile(String item) {
+        return item.lastIndexOf('.') > item.lastIndexOf('/');
+    }
+
+    private static void write(File file, long version, PrintStream out) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(("// version " + version + "\n").getBytes(StandardCharsets.UTF_8));
+        } finally {
+            os.close();
+        }
+        out.println("Retrieved " + file.getPath());
+    }
+
+    private static String format(long millis) {
+        return new SimpleDateFormat(VaultSCM.VAULT_DATE_FORMAT).format(millis);
+    }
+
+    private static long parse(String date) {
+        try {
+            return new SimpleDateFormat(VaultSCM.VAULT_DATE_FORMAT).parse(date).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Bad date " + date, e);
+        }
+    }
+
+    /**
+     * Splits a batch file line, honouring double quotes.
+     */
+    private static String[] split(String line) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        boolean any = false;
+        for (char c : line.toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+                any = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (any) {
+                    args.add(current.toString());
+                    current.setLength(0);
+                    any = false;
+                }
+            } else {
+                current.append(c);
+                any = true;
+            }
+        }
+        if (any) {
+            args.add(current.toString());
+        }
+        return args.toArray(new String[args.size()]);
+    }
+}
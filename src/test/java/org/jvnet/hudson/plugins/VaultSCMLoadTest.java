@@ -0,0 +1,158 @@
+package org.jvnet.hudson.plugins;
+
+import static org.junit.Assert.assertTrue;
+
+import hudson.Functions;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.scm.PollingResult;
+import hudson.util.StreamTaskListener;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Many jobs checking out and polling a few paths at once through VaultSCM
+ * itself, with {@link VaultSCMFakeClient} started as a process for every
+ * command in place of vault.exe. Checkouts and polls go through the plugin's
+ * concurrency limits, history cache, changelog capture and workspace
+ * markers, and their latencies are printed and held to a budget.
+ * {@link VaultSCMLoadBenchmark} measures the limiter and cache alone under
+ * heavier load.
+ */
+public class VaultSCMLoadTest {
+
+    private static final String SERVER = "vault.example.com";
+    private static final String REPOSITORY = "Default Repository";
+
+    private static final int JOBS = 8;
+
+    /**
+     * Number of distinct paths the jobs use, jobs on the same path share cached results.
+     */
+    private static final int PATHS = 2;
+
+    private static final long CHECK_IN_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    private static final long CHECKOUT_BUDGET_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private static final long POLL_BUDGET_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void concurrentJobsCheckOutAndPollWithinBudget() throws Exception {
+        VaultSCMFakeClient.Settings settings = new VaultSCMFakeClient.Settings();
+        settings.checkInIntervalMillis = CHECK_IN_INTERVAL_MILLIS;
+        VaultSCM.DESCRIPTOR.getToolDescriptor().setInstallations(
+                new VaultSCMInstallation("fake", "", writeFakeClient(settings).getPath()));
+        j.jenkins.setNumExecutors(JOBS);
+
+        List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+        for (int i = 0; i < JOBS; i++) {
+            FreeStyleProject project = j.createFreeStyleProject("job" + i);
+            project.setScm(new VaultSCM(SERVER, "$/product" + (i % PATHS), "", "", REPOSITORY, "fake",
+                    false, false, "overwrite", "modification", false, false));
+            projects.add(project);
+        }
+
+        List<QueueTaskFuture<FreeStyleBuild>> builds = new ArrayList<QueueTaskFuture<FreeStyleBuild>>();
+        for (FreeStyleProject project : projects) {
+            builds.add(project.scheduleBuild2(0));
+        }
+        List<Long> checkouts = new ArrayList<Long>();
+        for (QueueTaskFuture<FreeStyleBuild> build : builds) {
+            checkouts.add(j.assertBuildStatusSuccess(build).getDuration());
+        }
+        report("checkout", checkouts, CHECKOUT_BUDGET_MILLIS);
+
+        //let the fake check in a new version of every path
+        Thread.sleep(CHECK_IN_INTERVAL_MILLIS * 2);
+
+        ExecutorService executor = Executors.newFixedThreadPool(JOBS);
+        try {
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (final FreeStyleProject project : projects) {
+                results.add(executor.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        long start = System.nanoTime();
+                        PollingResult result = project.poll(StreamTaskListener.fromStdout());
+                        assertTrue(project.getName() + " missed the new version", result.hasChanges());
+                        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    }
+                }));
+            }
+            List<Long> polls = new ArrayList<Long>();
+            for (Future<Long> result : results) {
+                polls.add(result.get());
+            }
+            report("poll", polls, POLL_BUDGET_MILLIS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes a script that starts the fake with the given settings, as the
+     * scripts in src/test/scripts do with the agent's environment.
+     */
+    private File writeFakeClient(VaultSCMFakeClient.Settings settings) throws Exception {
+        String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+        String classes = new File(VaultSCMFakeClient.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        StringBuilder script = new StringBuilder();
+        File file;
+        if (Functions.isWindows()) {
+            file = tmp.newFile("vault.cmd");
+            script.append("@echo off\r\n");
+            for (Map.Entry<String, String> var : settings.toEnvironment().entrySet()) {
+                script.append("set ").append(var.getKey()).append('=').append(var.getValue()).append("\r\n");
+            }
+            script.append('"').append(java).append("\" -cp \"").append(classes).append("\" ")
+                    .append(VaultSCMFakeClient.class.getName()).append(" %*\r\n");
+        } else {
+            file = tmp.newFile("vault");
+            script.append("#!/bin/sh\n");
+            for (Map.Entry<String, String> var : settings.toEnvironment().entrySet()) {
+                script.append("export ").append(var.getKey()).append('=').append(var.getValue()).append('\n');
+            }
+            script.append("exec \"").append(java).append("\" -cp \"").append(classes).append("\" ")
+                    .append(VaultSCMFakeClient.class.getName()).append(" \"$@\"\n");
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(script.toString().getBytes(StandardCharsets.UTF_8));
+        } finally {
+            out.close();
+        }
+        file.setExecutable(true);
+        return file;
+    }
+
+    private static void report(String name, List<Long> millis, long budget) {
+        List<Long> sorted = new ArrayList<Long>(millis);
+        Collections.sort(sorted);
+        long max = sorted.get(sorted.size() - 1);
+        System.out.println(name + " latency over " + sorted.size() + " jobs: p50 " + sorted.get(sorted.size() / 2)
+                + " ms, p95 " + sorted.get((int) Math.ceil(sorted.size() * 0.95) - 1) + " ms, max " + max + " ms");
+        assertTrue("The slowest " + name + " took " + max + " ms, the budget is " + budget + " ms", max <= budget);
+    }
+}
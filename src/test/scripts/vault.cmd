@@ -0,0 +1,3 @@
+@echo off
+rem Stands in for the Vault client, see VaultSCMFakeClient and the vault script next to this one.
+java -cp "%~dp0..\..\..\target\test-classes" org.jvnet.hudson.plugins.VaultSCMFakeClient %*